@@ -0,0 +1,229 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import info.raack.cacheutils.Cache;
+import info.raack.cacheutils.Cache.BlockingFunction;
+import info.raack.cacheutils.MaximumStalenessCache;
+import info.raack.cacheutils.NoCache;
+import info.raack.cacheutils.Ticker;
+
+/**
+ * Microbenchmarks for the individual paths through MaximumStalenessCache.get(),
+ * with NoCache as the baseline for the cost of simply running the computation.
+ *
+ * Key cardinality and staleness window are JMH parameters; thread count is
+ * supplied on the command line (-t) or swept by {@link ThreadScaling}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaximumStalenessCacheBenchmark {
+
+    // amount of CPU work done by the computation for each load
+    static final long LOAD_TOKENS = 1000;
+
+    static final BlockingFunction<Integer, Integer> COMPUTATION = key -> {
+        Blackhole.consumeCPU(LOAD_TOKENS);
+        return key;
+    };
+
+    static Integer[] keys(int keyCardinality) {
+        Integer[] keys = new Integer[keyCardinality];
+        for (int i = 0; i < keyCardinality; i++) {
+            keys[i] = i;
+        }
+        return keys;
+    }
+
+    static Integer randomKey(Integer[] keys) {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    /**
+     * Every key has been loaded before measurement starts; with a long enough
+     * window nearly every get() is a fresh hit.
+     */
+    @State(Scope.Benchmark)
+    public static class HitState {
+        @Param({ "16", "1024", "65536" })
+        int keyCardinality;
+
+        @Param({ "1000", "60000" })
+        long maximumStalenessMillis;
+
+        @Param({ "system", "coarse" })
+        String ticker;
+
+        // 0 for no near cache
+        @Param({ "0", "256" })
+        int nearCacheEntries;
+
+        Integer[] keys;
+        Cache<Integer, Integer> cache;
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException {
+            keys = keys(keyCardinality);
+            MaximumStalenessCache.Builder<Object, Object> builder = MaximumStalenessCache
+                    .builder(maximumStalenessMillis)
+                    .ticker("coarse".equals(ticker) ? Ticker.coarseTicker(1) : Ticker.systemTicker());
+            if (nearCacheEntries > 0) {
+                builder.nearCache(nearCacheEntries);
+            }
+            cache = builder.build(COMPUTATION);
+            for (Integer key : keys) {
+                cache.get(key);
+            }
+        }
+    }
+
+    /**
+     * Every get() asks for a key which has never been requested before, so
+     * every call computes a new value.
+     */
+    @State(Scope.Benchmark)
+    public static class MissState {
+        @Param({ "60000" })
+        long maximumStalenessMillis;
+
+        final AtomicLong nextKey = new AtomicLong();
+        MaximumStalenessCache<Long, Long> cache;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            BlockingFunction<Long, Long> computation = key -> {
+                Blackhole.consumeCPU(LOAD_TOKENS);
+                return key;
+            };
+            cache = new MaximumStalenessCache<>(maximumStalenessMillis, computation);
+        }
+
+        // keep the map from growing across iterations
+        @Setup(Level.Iteration)
+        public void clear() {
+            cache.clear();
+        }
+    }
+
+    /**
+     * A zero-length window makes every previously loaded value stale, so every
+     * get() goes through the stale-reload path.
+     */
+    @State(Scope.Benchmark)
+    public static class StaleState {
+        @Param({ "16", "1024", "65536" })
+        int keyCardinality;
+
+        Integer[] keys;
+        Cache<Integer, Integer> cache;
+
+        @Setup(Level.Trial)
+        public void setUp() throws InterruptedException {
+            keys = keys(keyCardinality);
+            cache = new MaximumStalenessCache<>(0, COMPUTATION);
+            for (Integer key : keys) {
+                cache.get(key);
+            }
+        }
+    }
+
+    /**
+     * More keys are requested than the cache may hold, so get() is a mix of
+     * hits, loads and evictions.
+     */
+    @State(Scope.Benchmark)
+    public static class BoundedState {
+        @Param({ "65536" })
+        int keyCardinality;
+
+        @Param({ "1024", "16384" })
+        long maximumSize;
+
+        Integer[] keys;
+        Cache<Integer, Integer> cache;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            keys = keys(keyCardinality);
+            cache = new MaximumStalenessCache<>(60000, maximumSize, COMPUTATION);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class NoCacheState {
+        @Param({ "16", "1024", "65536" })
+        int keyCardinality;
+
+        Integer[] keys;
+        Cache<Integer, Integer> cache;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            keys = keys(keyCardinality);
+            cache = new NoCache<>(COMPUTATION);
+        }
+    }
+
+    @Benchmark
+    public Integer hit(HitState state) throws InterruptedException {
+        return state.cache.get(randomKey(state.keys));
+    }
+
+    @Benchmark
+    public Long miss(MissState state) throws InterruptedException {
+        return state.cache.get(state.nextKey.getAndIncrement());
+    }
+
+    @Benchmark
+    public Integer staleRefresh(StaleState state) throws InterruptedException {
+        return state.cache.get(randomKey(state.keys));
+    }
+
+    @Benchmark
+    public Integer bounded(BoundedState state) throws InterruptedException {
+        return state.cache.get(randomKey(state.keys));
+    }
+
+    @Benchmark
+    public Integer noCache(NoCacheState state) throws InterruptedException {
+        return state.cache.get(randomKey(state.keys));
+    }
+}
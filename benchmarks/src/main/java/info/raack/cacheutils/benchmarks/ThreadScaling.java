@@ -0,0 +1,57 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching a pattern once per thread count, since JMH
+ * cannot vary thread count as a regular parameter.
+ *
+ * Usage: java -cp benchmarks.jar info.raack.cacheutils.benchmarks.ThreadScaling
+ * [pattern] [threads...]
+ */
+public class ThreadScaling {
+
+    private static final int[] DEFAULT_THREADS = { 1, 4, 16, 64, 200 };
+
+    public static void main(String[] args) throws RunnerException {
+        String pattern = args.length > 0 ? args[0] : MaximumStalenessCacheBenchmark.class.getSimpleName();
+
+        int[] threadCounts = DEFAULT_THREADS;
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder().include(pattern).threads(threads)
+                    .result("jmh-" + threads + "-threads.json")
+                    .resultFormat(ResultFormatType.JSON).build();
+            new Runner(options).run();
+        }
+    }
+}
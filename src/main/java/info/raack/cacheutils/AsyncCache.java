@@ -0,0 +1,42 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A cache whose lookups return futures rather than blocking the caller until
+ * the value has been computed.
+ */
+public interface AsyncCache<K, V> {
+
+    /**
+     * Returns a future for the value of the key. Cancelling the returned future
+     * does not cancel the computation, which other callers may be waiting for.
+     */
+    public CompletableFuture<V> getAsync(K key);
+
+    /**
+     * Returns a future for the values of each of the given keys, in iteration
+     * order, which completes once all of the values are available.
+     */
+    public CompletableFuture<Map<K, V>> getAllAsync(Iterable<? extends K> keys);
+}
@@ -0,0 +1,575 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounds the entries in a MaximumStalenessCache by size, by age, or both.
+ *
+ * The size bound is either a number of entries or, if the cache has a weigher,
+ * a total weight. Each result's weight is only known once its computation
+ * completes, and it counts as zero until then. Weights are recorded in the
+ * write buffer like any other change, so the computing thread never waits for
+ * the eviction lock, and are summed by the policy while holding it.
+ *
+ * The size bound is enforced with the W-TinyLFU
+ * policy. New entries enter a small LRU admission window; entries leaving the
+ * window compete with the least recently used entry of the main region and
+ * only the one with the higher estimated frequency is retained. The main
+ * region is a segmented LRU, where entries accessed again while on probation
+ * are promoted to a protected segment. This keeps the hit rate high for both
+ * recency- and frequency-skewed workloads and resists pollution by scans.
+ *
+ * The age bound proactively removes results which are older than their
+ * staleness bound, so that keys which are never requested again do not stay
+ * resident. Results are scheduled on a TimerWheel when inserted; the wheel is
+ * advanced whenever maintenance runs, which happens as part of cache
+ * operations once a sweep is due and periodically on the Scheduler's thread.
+ *
+ * Reads and writes against the map are not applied to the policy directly;
+ * they are recorded in buffers and replayed in batches by whichever thread
+ * acquires the eviction lock, so that the hot path never blocks on the policy.
+ * Read events may be dropped under contention; write events never are.
+ */
+final class BoundedPolicy<K, V> {
+
+    static final int WINDOW = 1;
+    static final int PROBATION = 2;
+    static final int PROTECTED = 3;
+
+    // percentage of the maximum size which is the main (non-window) region
+    private static final double PERCENT_MAIN = 0.99;
+    // percentage of the main region which is protected
+    private static final double PERCENT_MAIN_PROTECTED = 0.80;
+    // candidates at or below this frequency never displace an equally popular victim
+    private static final int ADMIT_HASHDOS_THRESHOLD = 6;
+
+    static final long UNSET = -1;
+
+    private final ConcurrentMap<K, Result<K, V>> cache;
+    private final Ticker ticker;
+    private final StatsCounter stats;
+    private final Consumer<Result<K, V>> evictionListener;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer<Result<K, V>> readBuffer = new ReadBuffer<>();
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    private final boolean evicts;
+    private final boolean weighted;
+    private final boolean expires;
+    private final long sweepIntervalNanos;
+    private volatile long nextSweepNanos;
+    private final ScheduledFuture<?> sweepFuture;
+
+    // guarded by evictionLock
+    private final FrequencySketch<K> sketch;
+    private final TimerWheel<K, V> timerWheel;
+    private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> protectedDeque = new AccessOrderDeque<>();
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    // weighted sizes, which count each entry as one if the policy is not
+    // weighted
+    private long size;
+    private long windowSize;
+    private long protectedSize;
+    // the number of entries, which sizes the sketch of a weighted policy
+    private long entries;
+    private long sketchCapacity;
+
+    /**
+     * @param cache
+     *            the map whose entries are bounded; entries chosen for eviction
+     *            are removed from it
+     * @param maximumSize
+     *            the maximum number of entries, or total weight, to retain, or
+     *            UNSET
+     * @param weighted
+     *            whether maximumSize is a total weight, with each result's
+     *            weight supplied by recordCompletion()
+     * @param expires
+     *            whether results are removed once older than their staleness
+     *            bound
+     * @param sweepIntervalNanos
+     *            how often expired results are looked for, if expires is set
+     * @param ticker
+     *            the time source that result start times were read from
+     * @param stats
+     *            records evictions, or null
+     * @param evictionListener
+     *            called with each result removed from the cache by the policy,
+     *            or null
+     */
+    BoundedPolicy(ConcurrentMap<K, Result<K, V>> cache, long maximumSize, boolean weighted, boolean expires,
+            long sweepIntervalNanos, Ticker ticker, StatsCounter stats, Consumer<Result<K, V>> evictionListener) {
+        this.cache = cache;
+        this.ticker = ticker;
+        this.stats = stats;
+        this.evictionListener = evictionListener;
+        this.evicts = (maximumSize != UNSET);
+        this.weighted = weighted;
+        this.maximum = maximumSize;
+        this.windowMaximum = maximumSize - (long) (PERCENT_MAIN * maximumSize);
+        this.protectedMaximum = (long) (PERCENT_MAIN_PROTECTED * (maximumSize - windowMaximum));
+        // a weighted policy's sketch grows with the number of entries instead
+        this.sketch = evicts ? new FrequencySketch<>(weighted ? 0 : maximumSize) : null;
+
+        this.expires = expires;
+        this.sweepIntervalNanos = sweepIntervalNanos;
+        long now = ticker.read();
+        this.timerWheel = expires ? new TimerWheel<>(now) : null;
+        this.nextSweepNanos = now + sweepIntervalNanos;
+        if (expires) {
+            SweepTask task = new SweepTask(this);
+            task.future = Scheduler.scheduleWithFixedDelay(task, sweepIntervalNanos, TimeUnit.NANOSECONDS);
+            this.sweepFuture = task.future;
+        } else {
+            this.sweepFuture = null;
+        }
+    }
+
+    /**
+     * Stops periodic maintenance.
+     */
+    void close() {
+        if (sweepFuture != null) {
+            sweepFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Records that a cached result was returned to a caller.
+     *
+     * @param now
+     *            the current ticker reading
+     */
+    void recordRead(Result<K, V> result, long now) {
+        if (evicts && (readBuffer.offer(result) == ReadBuffer.FULL)) {
+            scheduleDrain();
+        } else if (expires && (now - nextSweepNanos >= 0)) {
+            // amortize sweeping over reads, rather than relying on the
+            // scheduler running the sweep promptly
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Records that a result was inserted into the map. Safe to call from
+     * within a map computation, as it never acquires a lock.
+     */
+    void recordAdd(Result<K, V> result) {
+        writeBuffer.add(() -> onAdd(result));
+    }
+
+    /**
+     * Records that a result was removed from the map. Safe to call from within
+     * a map computation, as it never acquires a lock.
+     */
+    void recordRemoval(Result<K, V> result) {
+        writeBuffer.add(() -> onRemove(result));
+    }
+
+    /**
+     * Records that a result was replaced in the map by a newer result for the
+     * same key. The newer result takes over the position of the older one.
+     */
+    void recordReplacement(Result<K, V> previous, Result<K, V> result) {
+        writeBuffer.add(() -> onReplace(previous, result));
+    }
+
+    /**
+     * Records that a result's computation has completed, with the given
+     * weight, and possibly with a staleness bound of its own. Safe to call
+     * before the result is added to the map, or after it is removed.
+     */
+    void recordCompletion(Result<K, V> result, int weight) {
+        writeBuffer.add(() -> onComplete(result, weight));
+    }
+
+    /**
+     * Applies any pending writes, evicting entries if the cache has grown too
+     * large. Must not be called from within a map computation.
+     */
+    void afterWrite() {
+        if (!writeBuffer.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        // if the lock is held, its owner re-checks the write buffer after
+        // unlocking and so will pick up anything recorded in the meantime
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    private void maintenance() {
+        if (evicts) {
+            readBuffer.drainTo(this::onAccess);
+        }
+
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+
+        if (expires) {
+            long now = ticker.read();
+            timerWheel.advance(now, this::evict);
+            nextSweepNanos = now + sweepIntervalNanos;
+        }
+        if (evicts) {
+            evictEntries();
+        }
+    }
+
+    private void onAdd(Result<K, V> result) {
+        if (result.retired) {
+            // removed before its insertion was replayed
+            return;
+        }
+        result.added = true;
+        if (expires) {
+            result.expiresAt = result.startedAt + result.maximumStalenessNanos;
+            timerWheel.schedule(result);
+        }
+        if (evicts) {
+            if (!weighted) {
+                result.policyWeight = 1;
+            } else if (++entries > sketchCapacity) {
+                sketchCapacity = Math.max(2 * sketchCapacity, 64);
+                sketch.ensureCapacity(sketchCapacity);
+            }
+            sketch.increment(result.key);
+            result.queueType = WINDOW;
+            window.addLast(result);
+            windowSize += result.policyWeight;
+            size += result.policyWeight;
+        }
+    }
+
+    private void onReplace(Result<K, V> previous, Result<K, V> result) {
+        if (result.retired) {
+            onRemove(previous);
+            return;
+        }
+        if (previous.retired || !previous.added) {
+            // the previous result has already been evicted, or replaced before
+            // its own insertion was replayed; treat as an insertion, and retire
+            // the previous result so that its insertion is skipped
+            previous.retired = true;
+            onAdd(result);
+            return;
+        }
+        result.added = true;
+
+        if (expires) {
+            timerWheel.deschedule(previous);
+            result.expiresAt = result.startedAt + result.maximumStalenessNanos;
+            timerWheel.schedule(result);
+        }
+        if (evicts) {
+            if (!weighted) {
+                result.policyWeight = 1;
+            }
+            sketch.increment(result.key);
+            queueOf(previous).replace(previous, result);
+            result.queueType = previous.queueType;
+            previous.queueType = 0;
+            adjustWeight(result, result.policyWeight - previous.policyWeight);
+        }
+        previous.retired = true;
+    }
+
+    private void onComplete(Result<K, V> result, int weight) {
+        if (weighted) {
+            int delta = weight - result.policyWeight;
+            result.policyWeight = weight;
+            if (result.queueType != 0) {
+                adjustWeight(result, delta);
+            }
+        }
+        long expiresAt = result.startedAt + result.maximumStalenessNanos;
+        if (expires && (result.nextInVariableOrder != null) && (expiresAt != result.expiresAt)) {
+            timerWheel.deschedule(result);
+            result.expiresAt = expiresAt;
+            timerWheel.schedule(result);
+        }
+    }
+
+    // accounts for a change in the weight of a result in one of the queues
+    private void adjustWeight(Result<K, V> result, long delta) {
+        if (result.queueType == WINDOW) {
+            windowSize += delta;
+        } else if (result.queueType == PROTECTED) {
+            protectedSize += delta;
+        }
+        size += delta;
+    }
+
+    private AccessOrderDeque<K, V> queueOf(Result<K, V> result) {
+        if (result.queueType == WINDOW) {
+            return window;
+        } else if (result.queueType == PROBATION) {
+            return probation;
+        }
+        return protectedDeque;
+    }
+
+    private void onRemove(Result<K, V> result) {
+        result.retired = true;
+        unlink(result);
+    }
+
+    private void onAccess(Result<K, V> result) {
+        if (result.queueType == 0) {
+            // not yet added, or already removed
+            return;
+        }
+        sketch.increment(result.key);
+
+        if (result.queueType == WINDOW) {
+            window.moveToBack(result);
+        } else if (result.queueType == PROBATION) {
+            probation.remove(result);
+            result.queueType = PROTECTED;
+            protectedDeque.addLast(result);
+            protectedSize += result.policyWeight;
+            demoteFromProtected();
+        } else {
+            protectedDeque.moveToBack(result);
+        }
+    }
+
+    private void demoteFromProtected() {
+        while (protectedSize > protectedMaximum) {
+            Result<K, V> demoted = protectedDeque.first;
+            protectedDeque.remove(demoted);
+            protectedSize -= demoted.policyWeight;
+            demoted.queueType = PROBATION;
+            probation.addLast(demoted);
+        }
+    }
+
+    private void unlink(Result<K, V> result) {
+        if (expires) {
+            timerWheel.deschedule(result);
+        }
+        if (result.queueType == WINDOW) {
+            window.remove(result);
+            windowSize -= result.policyWeight;
+        } else if (result.queueType == PROBATION) {
+            probation.remove(result);
+        } else if (result.queueType == PROTECTED) {
+            protectedDeque.remove(result);
+            protectedSize -= result.policyWeight;
+        } else {
+            return;
+        }
+        result.queueType = 0;
+        size -= result.policyWeight;
+        if (weighted) {
+            entries--;
+        }
+    }
+
+    private void evictEntries() {
+        int candidates = evictFromWindow();
+        evictFromMain(candidates);
+    }
+
+    // moves entries which overflow the window to the tail of probation, where
+    // they become candidates for admission to the main region
+    private int evictFromWindow() {
+        int candidates = 0;
+        while (windowSize > windowMaximum) {
+            Result<K, V> result = window.first;
+            window.remove(result);
+            windowSize -= result.policyWeight;
+            result.queueType = PROBATION;
+            probation.addLast(result);
+            candidates++;
+        }
+        return candidates;
+    }
+
+    // the candidates are the last entries of probation, the victim is the first
+    private void evictFromMain(int candidates) {
+        while (size > maximum) {
+            Result<K, V> victim = probation.first;
+            Result<K, V> candidate = (candidates > 0) ? probation.last : null;
+
+            if ((candidate != null) && (victim != candidate)) {
+                if (admit(candidate.key, victim.key)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                    candidates--;
+                }
+            } else {
+                if (candidate != null) {
+                    candidates--;
+                }
+                if (victim == null) {
+                    victim = (protectedDeque.first != null) ? protectedDeque.first : window.first;
+                }
+                if (victim == null) {
+                    return;
+                }
+                evict(victim);
+            }
+        }
+    }
+
+    private boolean admit(K candidateKey, K victimKey) {
+        int victimFrequency = sketch.frequency(victimKey);
+        int candidateFrequency = sketch.frequency(candidateKey);
+        if (candidateFrequency > victimFrequency) {
+            return true;
+        } else if (candidateFrequency < ADMIT_HASHDOS_THRESHOLD) {
+            return false;
+        }
+        // an attacker could keep a victim artificially hot; occasionally let
+        // a warm candidate in anyway
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+
+    private void evict(Result<K, V> result) {
+        unlink(result);
+        result.retired = true;
+        // only removes the mapping if it has not already been replaced
+        if (cache.remove(result.key, result)) {
+            if (stats != null) {
+                stats.recordEviction();
+            }
+            if (evictionListener != null) {
+                evictionListener.accept(result);
+            }
+        }
+    }
+
+    /**
+     * Periodically runs maintenance for a policy, until the policy is garbage
+     * collected.
+     */
+    private static final class SweepTask implements Runnable {
+        private final WeakReference<BoundedPolicy<?, ?>> policy;
+        private volatile ScheduledFuture<?> future;
+
+        SweepTask(BoundedPolicy<?, ?> policy) {
+            this.policy = new WeakReference<>(policy);
+        }
+
+        @Override
+        public void run() {
+            BoundedPolicy<?, ?> boundedPolicy = policy.get();
+            if (boundedPolicy == null) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            } else {
+                boundedPolicy.scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * An intrusive doubly-linked list of results, using the access order links
+     * on the results themselves.
+     */
+    private static final class AccessOrderDeque<K, V> {
+        Result<K, V> first;
+        Result<K, V> last;
+
+        void addLast(Result<K, V> result) {
+            result.previousInAccessOrder = last;
+            result.nextInAccessOrder = null;
+            if (last == null) {
+                first = result;
+            } else {
+                last.nextInAccessOrder = result;
+            }
+            last = result;
+        }
+
+        void remove(Result<K, V> result) {
+            Result<K, V> previous = result.previousInAccessOrder;
+            Result<K, V> next = result.nextInAccessOrder;
+            if (previous == null) {
+                first = next;
+            } else {
+                previous.nextInAccessOrder = next;
+            }
+            if (next == null) {
+                last = previous;
+            } else {
+                next.previousInAccessOrder = previous;
+            }
+            result.previousInAccessOrder = null;
+            result.nextInAccessOrder = null;
+        }
+
+        // puts the replacement in the position of the replaced result
+        void replace(Result<K, V> replaced, Result<K, V> replacement) {
+            Result<K, V> previous = replaced.previousInAccessOrder;
+            Result<K, V> next = replaced.nextInAccessOrder;
+            replacement.previousInAccessOrder = previous;
+            replacement.nextInAccessOrder = next;
+            if (previous == null) {
+                first = replacement;
+            } else {
+                previous.nextInAccessOrder = replacement;
+            }
+            if (next == null) {
+                last = replacement;
+            } else {
+                next.previousInAccessOrder = replacement;
+            }
+            replaced.previousInAccessOrder = null;
+            replaced.nextInAccessOrder = null;
+        }
+
+        void moveToBack(Result<K, V> result) {
+            if (result != last) {
+                remove(result);
+                addLast(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Limits how many tasks may run at once on an underlying executor. Tasks
+ * beyond the limit wait in a queue, without occupying a thread, until a
+ * running task finishes. This keeps one cache's computations from taking over
+ * an executor shared with other caches.
+ */
+final class BulkheadExecutor implements Executor {
+
+    private final Executor delegate;
+    private final int maximumConcurrency;
+    private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    BulkheadExecutor(Executor delegate, int maximumConcurrency) {
+        this.delegate = delegate;
+        this.maximumConcurrency = maximumConcurrency;
+    }
+
+    /**
+     * Runs the task once fewer than the maximum are running, or throws a
+     * RejectedExecutionException from whichever thread finds that the
+     * underlying executor will not run it, which may not be the caller's.
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(task, e -> {
+            throw e;
+        });
+    }
+
+    /**
+     * Runs the task once fewer than the maximum are running.
+     *
+     * @param onRejection
+     *            called instead, possibly from another thread, if the
+     *            underlying executor will not run the task
+     */
+    void execute(Runnable task, Consumer<RejectedExecutionException> onRejection) {
+        queue.add(new Task(task, onRejection));
+        drain();
+    }
+
+    private void drain() {
+        for (;;) {
+            int current = running.get();
+            if (current >= maximumConcurrency || queue.isEmpty()) {
+                // a running task will drain the queue when it finishes
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Task next = queue.poll();
+            if (next == null) {
+                // another thread took the task; give back the slot and re-check,
+                // as a task queued meanwhile may have seen no free slot
+                running.decrementAndGet();
+                continue;
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        next.task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the underlying executor has been shut down, so the tasks still
+                // queued will be rejected in turn as the loop continues
+                running.decrementAndGet();
+                next.onRejection.accept(e);
+            }
+        }
+    }
+
+    private static final class Task {
+        final Runnable task;
+        final Consumer<RejectedExecutionException> onRejection;
+
+        Task(Runnable task, Consumer<RejectedExecutionException> onRejection) {
+            this.task = task;
+            this.onRejection = onRejection;
+        }
+    }
+}
@@ -19,9 +19,26 @@
 
 package info.raack.cacheutils;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public interface Cache<K, V> {
     public V get(K key) throws InterruptedException;
 
+    /**
+     * Returns the values for each of the given keys, in iteration order. The
+     * default implementation calls get() for each distinct key in turn.
+     */
+    public default Map<K, V> getAll(Iterable<? extends K> keys) throws InterruptedException {
+        Map<K, V> values = new LinkedHashMap<>();
+        for (K key : keys) {
+            if (!values.containsKey(key)) {
+                values.put(key, get(key));
+            }
+        }
+        return values;
+    }
+
     @FunctionalInterface
     public interface BlockingFunction<T, R> {
         public R apply(T t) throws InterruptedException;
@@ -0,0 +1,176 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+/**
+ * An immutable snapshot of the statistics for a MaximumStalenessCache.
+ *
+ * A request is a hit if a fresh value was found in the cache, and otherwise a
+ * miss. A miss may wait for a computation started by another request rather
+ * than starting one itself. Loads are computations of values, whether started
+ * by a miss or by a background refresh.
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long staleReloadCount;
+    private final long refreshCount;
+    private final long hedgeCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+    private final long evictionCount;
+    private final long[] loadTimeHistogram;
+
+    CacheStats(long hitCount, long missCount, long staleReloadCount, long refreshCount, long hedgeCount,
+            long loadSuccessCount, long loadFailureCount, long totalLoadTimeNanos, long evictionCount,
+            long[] loadTimeHistogram) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.staleReloadCount = staleReloadCount;
+        this.refreshCount = refreshCount;
+        this.hedgeCount = hedgeCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.evictionCount = evictionCount;
+        this.loadTimeHistogram = loadTimeHistogram;
+    }
+
+    static CacheStats empty() {
+        return new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0, new long[StatsCounter.HISTOGRAM_BUCKETS]);
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * Returns the ratio of hits to requests, or 1.0 if there have been no
+     * requests.
+     */
+    public double hitRate() {
+        long requestCount = requestCount();
+        return (requestCount == 0) ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * Returns the number of computations started because the cached value had
+     * exceeded the staleness bound.
+     */
+    public long staleReloadCount() {
+        return staleReloadCount;
+    }
+
+    /**
+     * Returns the number of background refreshes started.
+     */
+    public long refreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * Returns the number of second computations started because the first
+     * was slow. Only the computation which completed first is counted as a
+     * load.
+     */
+    public long hedgeCount() {
+        return hedgeCount;
+    }
+
+    public long loadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long loadFailureCount() {
+        return loadFailureCount;
+    }
+
+    public long loadCount() {
+        return loadSuccessCount + loadFailureCount;
+    }
+
+    public long totalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    public double averageLoadTimeNanos() {
+        long loadCount = loadCount();
+        return (loadCount == 0) ? 0.0 : (double) totalLoadTimeNanos / loadCount;
+    }
+
+    /**
+     * Returns an estimate of the given percentile of load times. Load times are
+     * recorded in power of two buckets, so the estimate is the upper bound of
+     * the bucket containing the percentile and may be up to twice the true
+     * value.
+     *
+     * @param percentile
+     *            between 0 and 100
+     */
+    public long loadTimePercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        // the histogram's own total, as the counters are not read atomically
+        // with it and may include loads it does not
+        long recorded = 0;
+        for (long count : loadTimeHistogram) {
+            recorded += count;
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100 * recorded), 1);
+        long seen = 0;
+        for (int i = 0; i < loadTimeHistogram.length; i++) {
+            seen += loadTimeHistogram[i];
+            if (seen >= rank) {
+                return (i >= 62) ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+        }
+        // not reached, as the rank is at most the total
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of entries removed by the size bound or by expiry.
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats[hitCount=" + hitCount + ", missCount=" + missCount + ", staleReloadCount="
+                + staleReloadCount + ", refreshCount=" + refreshCount + ", hedgeCount=" + hedgeCount
+                + ", loadSuccessCount=" + loadSuccessCount + ", loadFailureCount=" + loadFailureCount
+                + ", totalLoadTimeNanos=" + totalLoadTimeNanos + ", evictionCount=" + evictionCount + "]";
+    }
+}
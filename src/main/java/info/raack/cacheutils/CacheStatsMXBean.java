@@ -0,0 +1,53 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+/**
+ * The JMX view of a MaximumStalenessCache's statistics, registered when the
+ * cache is built with {@link MaximumStalenessCache.Builder#registerMBean(String)}.
+ */
+public interface CacheStatsMXBean {
+
+    public long getEstimatedSize();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public double getHitRate();
+
+    public long getStaleReloadCount();
+
+    public long getRefreshCount();
+
+    public long getHedgeCount();
+
+    public long getLoadSuccessCount();
+
+    public long getLoadFailureCount();
+
+    public double getAverageLoadTimeNanos();
+
+    public long getLoadTime50thPercentileNanos();
+
+    public long getLoadTime99thPercentileNanos();
+
+    public long getEvictionCount();
+}
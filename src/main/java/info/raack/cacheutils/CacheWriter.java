@@ -0,0 +1,40 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.Map;
+
+/**
+ * Writes the values put into a MaximumStalenessCache to the backing store in
+ * the background, for a cache built with
+ * {@link MaximumStalenessCache.Builder#writeBehind(CacheWriter, long, int)}.
+ */
+@FunctionalInterface
+public interface CacheWriter<K, V> {
+
+    /**
+     * Writes the latest value put for each of the keys, any of which may be
+     * null. Called on a background thread, never concurrently. If this throws,
+     * the values are written again with a later batch, except for keys which
+     * have been put again in the meantime.
+     */
+    public void writeAll(Map<K, V> values) throws InterruptedException;
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ticker whose reading is a volatile field refreshed from System.nanoTime()
+ * at a fixed rate by a daemon thread shared by all coarse tickers. The thread
+ * is not the Scheduler's, so that a slow timed task there cannot hold the
+ * reading back and make entries look fresher than they are.
+ */
+final class CoarseTicker implements Ticker {
+
+    private static final ScheduledThreadPoolExecutor clockExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "cacheutils-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        clockExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    private volatile long nanos = System.nanoTime();
+
+    CoarseTicker(long resolutionMillis) {
+        if (resolutionMillis <= 0) {
+            throw new IllegalArgumentException("resolutionMillis must be positive");
+        }
+        UpdateTask task = new UpdateTask(this);
+        task.future = clockExecutor.scheduleAtFixedRate(task, resolutionMillis, resolutionMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long read() {
+        return nanos;
+    }
+
+    /**
+     * Updates a ticker until the ticker is garbage collected.
+     */
+    private static final class UpdateTask implements Runnable {
+        private final WeakReference<CoarseTicker> ticker;
+        private volatile ScheduledFuture<?> future;
+
+        UpdateTask(CoarseTicker ticker) {
+            this.ticker = new WeakReference<>(ticker);
+        }
+
+        @Override
+        public void run() {
+            CoarseTicker coarseTicker = ticker.get();
+            if (coarseTicker == null) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            } else {
+                coarseTicker.nanos = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+/**
+ * Chooses how stale each value may become, for a cache whose values need
+ * different staleness bounds. See
+ * {@link MaximumStalenessCache.Builder#variableStaleness(Expiry)}.
+ */
+@FunctionalInterface
+public interface Expiry<K, V> {
+
+    /**
+     * Returns the maximum number of milliseconds that can elapse from when the
+     * computation of the given value started before it is re-computed, which
+     * must not be negative. Called once for each computed value, which may be
+     * null.
+     */
+    public long maximumStalenessMillis(K key, V value);
+}
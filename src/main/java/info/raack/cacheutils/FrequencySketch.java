@@ -0,0 +1,140 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+/**
+ * A probabilistic multiset for estimating the popularity of keys within a time
+ * window. Each key is counted in four 4-bit counters (a Count-Min sketch) and
+ * all counters are halved periodically so that the estimates favour recent
+ * activity.
+ *
+ * This class is not thread-safe; BoundedPolicy only uses it while holding its
+ * eviction lock.
+ */
+final class FrequencySketch<E> {
+
+    private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * @param maximumSize
+     *            the maximum number of entries the cache may hold, which sizes
+     *            the sketch and its aging period
+     */
+    FrequencySketch(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize, 1), Integer.MAX_VALUE >>> 1);
+        table = new long[Math.max(ceilingPowerOfTwo(maximum), 8)];
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+    }
+
+    /**
+     * Grows the sketch, discarding its counts, if it is too small for the given
+     * number of entries. For caches whose number of entries is not known up
+     * front.
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize, 1), Integer.MAX_VALUE >>> 1);
+        if (table.length >= maximum) {
+            return;
+        }
+        table = new long[ceilingPowerOfTwo(maximum)];
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of occurrences of an element, up to 15.
+     */
+    int frequency(E e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the popularity of the element if it does not exceed the
+     * maximum (15), aging all counters once enough increments have been seen.
+     */
+    void increment(E e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    // halve every counter
+    private void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            count += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (count >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+    // supplemental hash to protect against poor quality hashCode() implementations
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+}
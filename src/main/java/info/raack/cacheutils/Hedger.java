@@ -0,0 +1,154 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when a load has taken long enough to be worth hedging with a second
+ * attempt, and whether the budget for hedges allows one.
+ *
+ * The delay is a percentile of recent load times, taken from a histogram with
+ * eight buckets per power of two nanoseconds, so that it is within 12.5% of
+ * the true percentile. Every SAMPLES_PER_UPDATE loads the percentile is
+ * recomputed and the counts halved, so that the delay follows the backend as
+ * it speeds up or slows down. Until the first update there is no delay, and
+ * no load is hedged.
+ *
+ * Hedges are paid for from a credit which each load adds a fraction to, up to
+ * a small burst, so that at most that fraction of loads are hedged over time
+ * and a struggling backend is not sent twice the load.
+ */
+final class Hedger {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+    private static final int SAMPLES_PER_UPDATE = 128;
+    private static final long CREDIT_PER_HEDGE = 1000000;
+    // hedges which may be issued together after a quiet period
+    private static final long MAXIMUM_CREDIT = 10 * CREDIT_PER_HEDGE;
+
+    private final double percentile;
+    private final long creditPerLoad;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong credit = new AtomicLong();
+    private volatile long delayNanos = BoundedPolicy.UNSET;
+
+    /**
+     * @param percentile
+     *            the percentile of load times after which a load is hedged,
+     *            between 0 and 100
+     * @param maximumHedgeRate
+     *            the largest fraction of loads which may be hedged
+     */
+    Hedger(double percentile, double maximumHedgeRate) {
+        this.percentile = percentile;
+        this.creditPerLoad = (long) (maximumHedgeRate * CREDIT_PER_HEDGE);
+    }
+
+    /**
+     * Schedules the hedge to run once the load it belongs to, which has just
+     * started, has taken longer than the current delay. Returns null if loads
+     * are not being hedged yet.
+     */
+    ScheduledFuture<?> schedule(Runnable hedge) {
+        long current;
+        do {
+            current = credit.get();
+        } while (current < MAXIMUM_CREDIT
+                && !credit.compareAndSet(current, Math.min(MAXIMUM_CREDIT, current + creditPerLoad)));
+
+        long delay = delayNanos;
+        return (delay == BoundedPolicy.UNSET) ? null : Scheduler.schedule(hedge, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes the credit for a hedge, returning false if there is not enough.
+     */
+    boolean tryAcquire() {
+        for (;;) {
+            long current = credit.get();
+            if (current < CREDIT_PER_HEDGE) {
+                return false;
+            }
+            if (credit.compareAndSet(current, current - CREDIT_PER_HEDGE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the time an attempt took, whether it succeeded or failed, and
+     * whether or not it was the first to complete its load.
+     */
+    void recordLoad(long loadTimeNanos) {
+        counts.incrementAndGet(bucketOf(Math.max(0, loadTimeNanos)));
+        if (samples.incrementAndGet() % SAMPLES_PER_UPDATE == 0) {
+            updateDelay();
+        }
+    }
+
+    private synchronized void updateDelay() {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                delayNanos = upperBoundOf(i);
+                break;
+            }
+        }
+        // decay, so that older loads count for less
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.addAndGet(i, -(snapshot[i] / 2));
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    // the smallest load time above every time in the bucket
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket & (SUB_BUCKETS - 1);
+        long upperBound = (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+        return (upperBound <= 0) ? Long.MAX_VALUE : upperBound;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An InvalidationTransport connecting caches within a single process, such as
+ * for tests. Messages are delivered to each other member of the group on the
+ * sending thread.
+ */
+public final class InMemoryInvalidationTransport implements InvalidationTransport {
+    private final Collection<InMemoryInvalidationTransport> group;
+    private final Object deliveryLock = new Object();
+    private volatile Consumer<byte[]> receiver;
+
+    /**
+     * Creates a transport which is the only member of a new group.
+     */
+    public InMemoryInvalidationTransport() {
+        this.group = new CopyOnWriteArrayList<>();
+        group.add(this);
+    }
+
+    /**
+     * Creates a transport which joins the group of another.
+     *
+     * @param member
+     *            any transport already in the group
+     */
+    public InMemoryInvalidationTransport(InMemoryInvalidationTransport member) {
+        this.group = member.group;
+        group.add(this);
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(byte[] message) {
+        for (InMemoryInvalidationTransport member : group) {
+            Consumer<byte[]> memberReceiver = member.receiver;
+            if (member != this && memberReceiver != null) {
+                synchronized (member.deliveryLock) {
+                    // each member gets its own copy, and one message at a time
+                    memberReceiver.accept(message.clone());
+                }
+            }
+        }
+    }
+
+    @Override
+    public int maximumMessageLength() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void close() {
+        group.remove(this);
+        receiver = null;
+    }
+}
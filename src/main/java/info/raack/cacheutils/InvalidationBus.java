@@ -0,0 +1,247 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts the keys removed from one instance of a cache to its instances in
+ * other processes, and applies theirs to it.
+ *
+ * Removals are collected for a short delay and sent together, so that a burst
+ * of removals costs a few messages rather than one each; a key removed several
+ * times within the delay is sent once, and a clear() supersedes every key
+ * collected before it. A batch is split across as many messages as the
+ * transport requires.
+ *
+ * Each message is a magic number and a kind, followed for KEYS by the number
+ * of keys and each key's length and bytes. A key which cannot be encoded, or
+ * does not fit in a message, is sent as a clear instead, and a key which
+ * cannot be decoded is applied as one, so that neither is silently missed.
+ */
+final class InvalidationBus<K> {
+    private static final int MAGIC = 0x43494e56;
+    private static final byte KEYS = 0;
+    private static final byte CLEAR = 1;
+    // magic, kind and key count
+    private static final int HEADER_LENGTH = 9;
+    // keys are split across messages of at most this length even if the
+    // transport allows longer ones, so that each is a modest allocation
+    private static final int BATCH_MESSAGE_LENGTH = 65536;
+
+    private final InvalidationTransport transport;
+    private final ValueCodec<K> keyCodec;
+    private final long batchDelayNanos;
+    private final Executor executor;
+    private final Consumer<K> remover;
+    private final Runnable clearer;
+
+    private final Set<K> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean clearPending;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Object publishLock = new Object();
+    private volatile boolean closed;
+
+    /**
+     * @param executor
+     *            runs the sends, which may block
+     * @param remover
+     *            removes a key invalidated by another instance from this one,
+     *            without broadcasting it again
+     * @param clearer
+     *            clears this instance, without broadcasting it again
+     */
+    InvalidationBus(InvalidationTransport transport, ValueCodec<K> keyCodec, long batchDelayNanos,
+            Executor executor, Consumer<K> remover, Runnable clearer) throws IOException {
+        this.transport = transport;
+        this.keyCodec = keyCodec;
+        this.batchDelayNanos = batchDelayNanos;
+        this.executor = executor;
+        this.remover = remover;
+        this.clearer = clearer;
+        transport.start(this::receive);
+    }
+
+    /**
+     * Sends the key to the other instances with the next batch; must be called
+     * after the key has been removed locally.
+     */
+    void publish(K key) {
+        if (!closed) {
+            pending.add(key);
+            schedule();
+        }
+    }
+
+    /**
+     * Sends a clear to the other instances with the next batch; must be called
+     * after clearing locally.
+     */
+    void publishClear() {
+        if (!closed) {
+            clearPending = true;
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Scheduler.schedule(this::startFlush, batchDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // run by the Scheduler, whose thread must not wait for the transport, nor
+    // for the removals which an in-process transport applies to other caches
+    private void startFlush() {
+        try {
+            executor.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // try again after another delay; closing the cache sends anything
+            // still collected
+            scheduled.set(false);
+            if (!closed) {
+                schedule();
+            }
+        }
+    }
+
+    // sends everything collected so far
+    private void flush() {
+        synchronized (publishLock) {
+            // anything collected from here on is sent by the next flush
+            scheduled.set(false);
+            try {
+                if (clearPending) {
+                    clearPending = false;
+                    pending.clear();
+                    sendClear();
+                } else if (!pending.isEmpty()) {
+                    sendKeys();
+                }
+            } catch (IOException | RuntimeException e) {
+                // the other instances will serve the removed values until they
+                // become stale, as they would without a transport
+            }
+        }
+    }
+
+    private void sendKeys() throws IOException {
+        int maximumLength = transport.maximumMessageLength();
+        ByteBuffer message = null;
+        int count = 0;
+        for (Iterator<K> keys = pending.iterator(); keys.hasNext();) {
+            K key = keys.next();
+            keys.remove();
+            byte[] bytes;
+            try {
+                bytes = keyCodec.encode(key);
+            } catch (RuntimeException e) {
+                bytes = null;
+            }
+            if (bytes == null || HEADER_LENGTH + 4 + bytes.length > maximumLength) {
+                pending.clear();
+                sendClear();
+                return;
+            }
+            if (message != null && message.remaining() < 4 + bytes.length) {
+                send(message, count);
+                message = null;
+            }
+            if (message == null) {
+                int length = Math.min(maximumLength, Math.max(BATCH_MESSAGE_LENGTH, HEADER_LENGTH + 4 + bytes.length));
+                message = ByteBuffer.allocate(length);
+                message.position(HEADER_LENGTH);
+                count = 0;
+            }
+            message.putInt(bytes.length).put(bytes);
+            count++;
+        }
+        if (message != null) {
+            send(message, count);
+        }
+    }
+
+    private void send(ByteBuffer message, int count) throws IOException {
+        message.putInt(0, MAGIC).put(4, KEYS).putInt(5, count);
+        transport.send(Arrays.copyOf(message.array(), message.position()));
+    }
+
+    private void sendClear() throws IOException {
+        transport.send(ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).put(CLEAR).putInt(0).array());
+    }
+
+    private void receive(byte[] bytes) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer message = ByteBuffer.wrap(bytes);
+        try {
+            if (message.getInt() != MAGIC) {
+                // not sent by a cache
+                return;
+            }
+            byte kind = message.get();
+            int count = message.getInt();
+            if (kind == KEYS) {
+                for (int i = 0; i < count; i++) {
+                    int length = message.getInt();
+                    if (length < 0 || length > message.remaining()) {
+                        // not sent by a cache; checked before allocating, as
+                        // the length may be anything
+                        return;
+                    }
+                    byte[] key = new byte[length];
+                    message.get(key);
+                    remover.accept(keyCodec.decode(key));
+                }
+                return;
+            }
+        } catch (BufferUnderflowException e) {
+            // not sent by a cache
+            return;
+        } catch (RuntimeException e) {
+            // a key this instance cannot decode may still be cached here
+        }
+        clearer.run();
+    }
+
+    /**
+     * Sends anything still collected, then stops sending and receiving.
+     */
+    void close() {
+        // stop collecting first, so that nothing published meanwhile is left
+        // unsent
+        closed = true;
+        flush();
+        transport.close();
+    }
+}
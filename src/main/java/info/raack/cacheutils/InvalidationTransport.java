@@ -0,0 +1,61 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries invalidations between the instances of a cache running in different
+ * processes, for a cache built with
+ * {@link MaximumStalenessCache.Builder#broadcastInvalidations(InvalidationTransport, ValueCodec, long)}.
+ * Each instance has its own transport, which sends messages to the transports
+ * of all other instances and delivers theirs to it.
+ *
+ * Delivery may be unreliable: a lost message only means that the other
+ * instances serve the removed values until they become stale, as they would
+ * without a transport.
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Starts delivering messages sent by the other instances to the receiver.
+     * Called once, when the cache is built; messages may be delivered on any
+     * thread, but not concurrently.
+     */
+    public void start(Consumer<byte[]> receiver) throws IOException;
+
+    /**
+     * Sends a message to all other instances, but not to this one.
+     */
+    public void send(byte[] message) throws IOException;
+
+    /**
+     * Returns the length of the longest message which may be sent.
+     */
+    public int maximumMessageLength();
+
+    /**
+     * Stops delivering messages and releases any resources held. Called when
+     * the cache is closed.
+     */
+    public void close();
+}
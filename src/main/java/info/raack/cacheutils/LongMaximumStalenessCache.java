@@ -0,0 +1,257 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongFunction;
+
+/**
+ * A MaximumStalenessCache for primitive long keys, for caches of millions of
+ * entries keyed by numeric ids.
+ *
+ * Values have the same staleness bound, and are computed with the same
+ * single-flight guarantee, as in MaximumStalenessCache: all threads requesting
+ * a key which is missing or has reached its staleness bound wait for a single
+ * new computation. Keys are never boxed, and entries are held in an
+ * open-addressing table rather than as a map node and Result object each, so
+ * the cache uses much less memory per entry and creates far less garbage.
+ * Computed values are stored directly; only computations in progress hold a
+ * future.
+ *
+ * This class does not offer the size bound, background expiry, refresh,
+ * failure handling or statistics options of MaximumStalenessCache. Failed
+ * computations are kept, and their failure returned to callers, for the same
+ * time as a value would be. A computation may return null, which is cached.
+ *
+ * This class is thread-safe.
+ */
+public class LongMaximumStalenessCache<V> implements Cache<Long, V> {
+
+    // stored in place of a computed null value, as a null slot is empty
+    private static final Object NULL = new Object();
+
+    private final LongTable table = new LongTable();
+    private final long maximumStalenessNanos;
+    private final Ticker ticker = Ticker.systemTicker();
+    private final Executor executor = MaximumStalenessCache.resourcePool;
+    private final LongBlockingFunction<V> blockingValueComputer;
+    private final LongFunction<V> nonBlockingValueComputer;
+
+    /**
+     * Creates an instance of a LongMaximumStalenessCache based on a value
+     * computation which may block.
+     *
+     * @param maximumStalenessMillis
+     *            the maximum number of milliseconds that can elapse from the last
+     *            time that any key was requested
+     * @param blockingValueComputer
+     *            a functional interface which computes cache key values which may
+     *            block
+     */
+    public LongMaximumStalenessCache(long maximumStalenessMillis, LongBlockingFunction<V> blockingValueComputer) {
+        this(maximumStalenessMillis, blockingValueComputer, null);
+    }
+
+    /**
+     * Creates an instance of a LongMaximumStalenessCache based on a value
+     * computation which is guaranteed not to block.
+     *
+     * @param maximumStalenessMillis
+     *            the maximum number of milliseconds that can elapse from the last
+     *            time that any key was requested
+     * @param nonBlockingValueComputer
+     *            a functional interface which computes cache key values which is
+     *            guaranteed not to block
+     */
+    public LongMaximumStalenessCache(long maximumStalenessMillis, LongFunction<V> nonBlockingValueComputer) {
+        this(maximumStalenessMillis, null, nonBlockingValueComputer);
+    }
+
+    private LongMaximumStalenessCache(long maximumStalenessMillis, LongBlockingFunction<V> blockingValueComputer,
+            LongFunction<V> nonBlockingValueComputer) {
+        this.maximumStalenessNanos = maximumStalenessMillis * 1000000;
+        this.blockingValueComputer = blockingValueComputer;
+        this.nonBlockingValueComputer = nonBlockingValueComputer;
+    }
+
+    /**
+     * All values obtained via get() will return a value computed by the cacheLoader
+     * which was requested less than maximumStalenessMillis ago.
+     */
+    public V get(long key) throws InterruptedException {
+        long now = ticker.read();
+
+        // look for value in cache; a fresh value is returned without locking
+        Object value = table.getFresh(key, now - maximumStalenessNanos);
+
+        if (value == null) {
+            // missing or not valid (started loading value too long ago) - compute one
+            Loading<V> created = new Loading<>();
+            value = table.install(key, created, ticker.read(), maximumStalenessNanos);
+            if (value == created) {
+                start(key, created);
+            }
+        }
+        return valueOf(key, value);
+    }
+
+    /**
+     * Equivalent to {@link #get(long)}, for use as a Cache.
+     */
+    @Override
+    public V get(Long key) throws InterruptedException {
+        return get(key.longValue());
+    }
+
+    /**
+     * Returns the approximate number of entries in the cache, including those
+     * which are stale or still being computed.
+     */
+    public long estimatedSize() {
+        return table.size();
+    }
+
+    /**
+     * Removes all pre-computed values from the cache.
+     */
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * Removes a single pre-computed value from the cache.
+     *
+     * @param key
+     *            the key for the cache entry to be removed
+     */
+    public void remove(long key) {
+        table.remove(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueOf(long key, Object value) throws InterruptedException {
+        if (value instanceof Loading) {
+            try {
+                // return the value of the future, which may be a blocking call
+                return ((Loading<V>) value).get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not compute value for key " + key, e.getCause());
+            }
+        } else if (value instanceof Failure) {
+            throw new RuntimeException("Could not compute value for key " + key, ((Failure) value).cause);
+        }
+        return (value == NULL) ? null : (V) value;
+    }
+
+    private void start(final long key, final Loading<V> loading) {
+        Runnable computation = () -> {
+            V value;
+            try {
+                value = computeValue(key);
+            } catch (Throwable t) {
+                // keep the failure for callers until it becomes stale, unless the
+                // key has been removed or re-loaded in the meantime
+                table.replace(key, loading, new Failure(t));
+                loading.completeExceptionally(t);
+                return;
+            }
+            table.replace(key, loading, (value == null) ? NULL : value);
+            loading.complete(value);
+        };
+        try {
+            executor.execute(computation);
+        } catch (RejectedExecutionException e) {
+            table.replace(key, loading, new Failure(e));
+            loading.completeExceptionally(e);
+        }
+    }
+
+    // must be run by the executor
+    private V computeValue(long key) throws InterruptedException {
+        if (blockingValueComputer != null) {
+            // execute long-running, blocking computation
+            Blocker<V> blocker = new Blocker<>(blockingValueComputer, key);
+            // managedBlock ensures that enough threads are spun up for blocking methods to
+            // prevent thread stavation
+            ForkJoinPool.managedBlock(blocker);
+            return blocker.getItem();
+        } else {
+            return nonBlockingValueComputer.apply(key);
+        }
+    }
+
+    /**
+     * A BlockingFunction taking a primitive long key.
+     */
+    @FunctionalInterface
+    public interface LongBlockingFunction<R> {
+        public R apply(long key) throws InterruptedException;
+    }
+
+    // a computation in progress; a distinct type, so that it cannot be mistaken
+    // for a computed value
+    private static final class Loading<V> extends CompletableFuture<V> {
+    }
+
+    private static final class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static class Blocker<B> implements ManagedBlocker {
+        private final long key;
+        private final LongBlockingFunction<B> cacheLoader;
+        private B item;
+        // the write to done publishes item
+        private volatile boolean done;
+
+        public Blocker(LongBlockingFunction<B> cacheLoader, long key) {
+            this.key = key;
+            this.cacheLoader = cacheLoader;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!done) {
+                item = cacheLoader.apply(key);
+                done = true;
+            }
+            return true; // no additional blocking is necessary
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return done;
+        }
+
+        public B getItem() {
+            return item;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from primitive long keys to values and the time each value
+ * was started, without boxing keys or allocating a node per entry. Keys are
+ * spread across segments, each an open-addressing table with linear probing
+ * and three parallel arrays, so that an entry costs a slot in each array
+ * rather than a map node, a boxed key and a Result.
+ *
+ * Writes lock their segment. Reads are lock-free: they probe the table under an
+ * optimistic StampedLock stamp, and only take the read lock if a write
+ * interleaved.
+ *
+ * Values must not be null; a slot holding null is empty.
+ */
+final class LongTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long SPREAD = 0x9E3779B97F4A7C15L;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    LongTable() {
+        int count = FrequencySketch.ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Returns the value for the key if it was started after freshAfter, or null
+     * if the key is absent or its value is older.
+     */
+    Object getFresh(long key, long freshAfter) {
+        int hash = spread(key);
+        return segmentFor(hash).getFresh(key, hash, freshAfter);
+    }
+
+    /**
+     * Maps the key to the created value, started at startedAt, unless it is
+     * already mapped to a value started less than staleness nanoseconds
+     * earlier. Returns the value the key is mapped to afterwards.
+     */
+    Object install(long key, Object created, long startedAt, long staleness) {
+        int hash = spread(key);
+        return segmentFor(hash).install(key, hash, created, startedAt, staleness);
+    }
+
+    /**
+     * Replaces the value for the key, keeping its start time, if it is still
+     * mapped to the expected value.
+     */
+    boolean replace(long key, Object expected, Object value) {
+        int hash = spread(key);
+        return segmentFor(hash).replace(key, hash, expected, value);
+    }
+
+    boolean remove(long key) {
+        int hash = spread(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int hash) {
+        // the top bits pick the segment; the bottom bits the slot within it
+        return (segments.length == 1) ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    static int spread(long key) {
+        long h = key * SPREAD;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final long[] startedAt;
+        final Object[] values;
+        final int mask;
+        final int threshold;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            startedAt = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+            threshold = capacity - (capacity >>> 2);
+        }
+
+        // returns the slot holding the key, or the empty slot ending its probe
+        // sequence; probes at most every slot, so that an inconsistent
+        // optimistic read cannot loop forever
+        int indexOf(long key, int hash) {
+            int index = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                if (values[index] == null || keys[index] == key) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+    }
+
+    private static final class Segment extends StampedLock {
+        private static final long serialVersionUID = 1L;
+
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        // only written while holding the write lock
+        volatile int size;
+
+        Object getFresh(long key, int hash, long freshAfter) {
+            long stamp = tryOptimisticRead();
+            Object value = getFresh(table, key, hash, freshAfter);
+            if (validate(stamp)) {
+                return value;
+            }
+            stamp = readLock();
+            try {
+                return getFresh(table, key, hash, freshAfter);
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+
+        private static Object getFresh(Table table, long key, int hash, long freshAfter) {
+            int index = table.indexOf(key, hash);
+            if (index < 0) {
+                return null;
+            }
+            Object value = table.values[index];
+            if (value == null || Long.compare(table.startedAt[index], freshAfter) <= 0) {
+                return null;
+            }
+            return value;
+        }
+
+        Object install(long key, int hash, Object created, long startedAt, long staleness) {
+            long stamp = writeLock();
+            try {
+                Table table = this.table;
+                int index = table.indexOf(key, hash);
+                if (index >= 0 && table.values[index] != null) {
+                    if (Long.compare(table.startedAt[index], startedAt - staleness) > 0) {
+                        // another thread got there first
+                        return table.values[index];
+                    }
+                } else {
+                    if (size >= table.threshold) {
+                        table = resize(table);
+                    }
+                    index = table.indexOf(key, hash);
+                    table.keys[index] = key;
+                    size++;
+                }
+                table.startedAt[index] = startedAt;
+                table.values[index] = created;
+                return created;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        boolean replace(long key, int hash, Object expected, Object value) {
+            long stamp = writeLock();
+            try {
+                Table table = this.table;
+                int index = table.indexOf(key, hash);
+                if (index < 0 || table.values[index] != expected) {
+                    return false;
+                }
+                table.values[index] = value;
+                return true;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(long key, int hash) {
+            long stamp = writeLock();
+            try {
+                Table table = this.table;
+                int index = table.indexOf(key, hash);
+                if (index < 0 || table.values[index] == null) {
+                    return false;
+                }
+                delete(table, index);
+                size--;
+                return true;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = writeLock();
+            try {
+                table = new Table(INITIAL_CAPACITY);
+                size = 0;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        // empties the slot, shifting back later entries of the probe sequence so
+        // that no tombstones are needed
+        private static void delete(Table table, int index) {
+            int next = index;
+            for (;;) {
+                next = (next + 1) & table.mask;
+                if (table.values[next] == null) {
+                    break;
+                }
+                int home = spread(table.keys[next]) & table.mask;
+                // entries whose home slot is cyclically within (index, next] are
+                // still reachable and stay put
+                boolean reachable = (index <= next) ? (index < home && home <= next) : (index < home || home <= next);
+                if (!reachable) {
+                    table.keys[index] = table.keys[next];
+                    table.startedAt[index] = table.startedAt[next];
+                    table.values[index] = table.values[next];
+                    index = next;
+                }
+            }
+            table.values[index] = null;
+        }
+
+        private Table resize(Table table) {
+            Table resized = new Table(table.keys.length << 1);
+            for (int i = 0; i < table.values.length; i++) {
+                if (table.values[i] != null) {
+                    int index = resized.indexOf(table.keys[i], spread(table.keys[i]));
+                    resized.keys[index] = table.keys[i];
+                    resized.startedAt[index] = table.startedAt[i];
+                    resized.values[index] = table.values[i];
+                }
+            }
+            this.table = resized;
+            return resized;
+        }
+    }
+}
@@ -19,12 +19,31 @@
 
 package info.raack.cacheutils;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinPool.ManagedBlocker;
-import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
@@ -36,23 +55,116 @@ import java.util.function.Function;
  *
  * Staleness is bounded for all key values; if a value for a key is requested
  * that was requested farther back in time than the staleness threshold allows,
- * that value is re-computed. Multiple threads requesting a key which has
+ * that value is re-computed. The threshold is the same for all values unless
+ * the cache is given an {@link Expiry}, which chooses one for each value. Multiple threads requesting a key which has
  * reached its staleness bound will only re-load the key once; all threads will
  * be returned the single newly computed value.
  *
  * The computation function is provided by the user. This may either be a
  * non-blocking or blocking method. Any computation function which internally
  * uses ANY blocking methods MUST use the constructor with the BlockingFunction
- * argument, or this class will fail to work properly.
+ * argument, or this class will fail to work properly. By default computations
+ * run in a fork/join pool shared by all caches, which adds threads while
+ * blocking computations are in progress; on Java 21 and later a cache may
+ * instead run its computations on virtual threads. Each cache may also be given
+ * its own executor and a limit on concurrent computations, so that a slow
+ * computation for one cache cannot starve the others.
+ *
+ * By default every key ever requested is retained. If a maximum size is given,
+ * the cache evicts entries once it holds more than that many (or, with a
+ * weigher, once their total weight is more than a maximum weight), using a
+ * frequency-based admission policy (W-TinyLFU) so that popular keys are kept
+ * even in the face of scans over many keys which are only requested once.
+ * Stale entries are normally only replaced when their key is requested again;
+ * a cache may instead be configured to sweep them out in the background.
+ *
+ * A cache may also be given a refresh threshold shorter than the staleness
+ * bound. Once a value is older than the refresh threshold, the next request
+ * for it starts re-computing it in the background while continuing to return
+ * the existing value, so that frequently requested keys never wait for a
+ * re-computation unless it takes longer than the remaining staleness bound.
+ * If it does, requests which find the value stale wait for the background
+ * re-computation rather than starting another one.
+ *
+ * A computation which hangs would otherwise hold up every caller of its key
+ * for good. A cache may be given a load timeout, after which the computation
+ * is interrupted and failed like any other, so that later requests retry it
+ * once the failure is stale; callers may also bound their own wait with
+ * {@link #get(Object, long, TimeUnit)}, optionally being returned the stale
+ * value instead.
+ *
+ * By default, a failed computation is kept, and its failure returned to
+ * callers, for the same time as a value would be. A cache may be configured to
+ * retry failures sooner, with exponential backoff while a key keeps failing,
+ * and to continue returning the last good value while it does so.
+ *
+ * Values are normally held on the Java heap. A cache may instead be given a
+ * codec with which to store computed values in direct buffers outside of the
+ * heap, so that its size does not add to garbage collection pauses; each value
+ * is then decoded when it is requested.
+ *
+ * The fresh values in a cache may be saved to a file, and a new cache built to
+ * serve them until they become stale, so that a restarted application does not
+ * have to compute every value again at once.
+ *
+ * A computation may return null to indicate that the key has no value. The
+ * absence is cached like any other value, so that repeated requests for keys
+ * which do not exist are served from the cache, with the same staleness bound,
+ * rather than each re-running the computation. get() returns null for such
+ * keys, and getAll() maps them to null.
+ *
+ * Use {@link #builder(long)} to configure these options.
+ *
+ * Values are normally only computed by the cache. After updating the backing
+ * store, a caller may instead put the new value into the cache directly,
+ * rather than removing the key and paying for a reload; a cache may also be
+ * given a writer which writes the values put into it to the backing store in
+ * the background, in batches.
+ *
+ * Removing a key, or clearing the cache, only affects this instance, so
+ * instances of the same cache in other processes would otherwise serve the
+ * removed values until they become stale. A cache may be given a transport
+ * over which it broadcasts its removals, in batches, to its other instances,
+ * and applies theirs.
+ *
+ * For the hottest keys, even a lookup in the shared map is measurable when
+ * many threads request them at once. A cache may be given a small near cache
+ * in each thread, which serves get() requests for recently returned values
+ * without touching shared state until they would exceed their staleness bound
+ * (or are due for a refresh), or their key is removed.
+ *
+ * Values may also be requested without blocking via the {@link AsyncCache}
+ * methods, which share in-flight computations with blocking callers.
  *
  * This class is thread-safe.
  */
-public class MaximumStalenessCache<K, V> implements Cache<K, V> {
+public class MaximumStalenessCache<K, V> implements Cache<K, V>, AsyncCache<K, V>, AutoCloseable {
 
-    private final ConcurrentHashMap<K, Result<V>> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, Result<K, V>> cache = new ConcurrentHashMap<>();
     private final long maximumStalenessNanos;
+    private final long refreshAfterNanos;
+    private final long retryFailuresAfterNanos;
+    private final long maximumRetryDelayNanos;
+    private final boolean serveStaleOnFailure;
+    private final long loadTimeoutNanos;
+    private final boolean serveStaleOnTimeout;
+    private final Ticker ticker;
+    private final Executor executor;
+    private final StatsCounter stats;
+    private final StatsMXBean mxBean;
+    private volatile boolean closed;
     private final BlockingFunction<K, V> blockingValueComputer;
     private final Function<K, V> nonBlockingValueComputer;
+    private final BlockingFunction<Set<K>, Map<K, V>> bulkValueComputer;
+    private final BoundedPolicy<K, V> policy;
+    private final Weigher<? super K, ? super V> weigher;
+    private final Expiry<? super K, ? super V> expiry;
+    private final OffHeapStore<V> offHeap;
+    private final Snapshot<K, V> snapshot;
+    private final NearCache<K, V> nearCache;
+    private final InvalidationBus<K> invalidations;
+    private final WriteBehind<K, V> writeBehind;
+    private final Hedger hedger;
 
     /**
      * Creates an instance of a MaximumStalenessCache based on a value computation
@@ -66,9 +178,25 @@ public class MaximumStalenessCache<K, V> implements Cache<K, V> {
      *            block
      */
     public MaximumStalenessCache(long maximumStalenessMillis, BlockingFunction<K, V> blockingValueComputer) {
-        this.maximumStalenessNanos = maximumStalenessMillis * 1000000;
-        this.blockingValueComputer = blockingValueComputer;
-        this.nonBlockingValueComputer = null;
+        this(builder(maximumStalenessMillis), blockingValueComputer, null);
+    }
+
+    /**
+     * Creates an instance of a MaximumStalenessCache holding at most
+     * maximumSize entries, based on a value computation which may block.
+     *
+     * @param maximumStalenessMillis
+     *            the maximum number of milliseconds that can elapse from the last
+     *            time that any key was requested
+     * @param maximumSize
+     *            the maximum number of entries the cache may hold
+     * @param blockingValueComputer
+     *            a functional interface which computes cache key values which may
+     *            block
+     */
+    public MaximumStalenessCache(long maximumStalenessMillis, long maximumSize,
+            BlockingFunction<K, V> blockingValueComputer) {
+        this(builder(maximumStalenessMillis).maximumSize(maximumSize), blockingValueComputer, null);
     }
 
     /**
@@ -83,9 +211,116 @@ public class MaximumStalenessCache<K, V> implements Cache<K, V> {
      *            guaranteed not to block
      */
     public MaximumStalenessCache(long maximumStalenessMillis, Function<K, V> nonBlockingValueComputer) {
-        this.maximumStalenessNanos = maximumStalenessMillis * 1000000;
+        this(builder(maximumStalenessMillis), null, nonBlockingValueComputer);
+    }
+
+    /**
+     * Creates an instance of a MaximumStalenessCache holding at most
+     * maximumSize entries, based on a value computation which is guaranteed not
+     * to block.
+     *
+     * @param maximumStalenessMillis
+     *            the maximum number of milliseconds that can elapse from the last
+     *            time that any key was requested
+     * @param maximumSize
+     *            the maximum number of entries the cache may hold
+     * @param nonBlockingValueComputer
+     *            a functional interface which computes cache key values which is
+     *            guaranteed not to block
+     */
+    public MaximumStalenessCache(long maximumStalenessMillis, long maximumSize,
+            Function<K, V> nonBlockingValueComputer) {
+        this(builder(maximumStalenessMillis).maximumSize(maximumSize), null, nonBlockingValueComputer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private MaximumStalenessCache(Builder<? super K, ? super V> builder, BlockingFunction<K, V> blockingValueComputer,
+            Function<K, V> nonBlockingValueComputer) {
+        this.maximumStalenessNanos = builder.maximumStalenessNanos;
+        this.refreshAfterNanos = builder.refreshAfterNanos;
+        this.retryFailuresAfterNanos = builder.retryFailuresAfterNanos;
+        this.maximumRetryDelayNanos = builder.maximumRetryDelayNanos;
+        this.serveStaleOnFailure = builder.serveStaleOnFailure;
+        this.loadTimeoutNanos = builder.loadTimeoutNanos;
+        this.serveStaleOnTimeout = builder.serveStaleOnTimeout;
+        this.ticker = builder.ticker;
+        Executor backgroundExecutor = (builder.executor == null) ? resourcePool : builder.executor;
+        this.executor = (builder.maximumConcurrentComputations > 0)
+                ? new BulkheadExecutor(backgroundExecutor, builder.maximumConcurrentComputations)
+                : backgroundExecutor;
+        this.stats = builder.recordStats ? new StatsCounter() : null;
+        this.mxBean = (builder.mbeanName == null) ? null : new StatsMXBean(this, builder.mbeanName);
+        this.blockingValueComputer = blockingValueComputer;
         this.nonBlockingValueComputer = nonBlockingValueComputer;
-        this.blockingValueComputer = null;
+        // the builder's type parameters were narrowed to the key and value types
+        // when the bulk value computer was set
+        this.bulkValueComputer = (BlockingFunction<Set<K>, Map<K, V>>) (Object) builder.bulkValueComputer;
+        this.weigher = (Weigher<? super K, ? super V>) builder.weigher;
+        this.expiry = (Expiry<? super K, ? super V>) builder.expiry;
+        this.offHeap = (builder.valueCodec == null) ? null
+                : new OffHeapStore<>((ValueCodec<V>) (Object) builder.valueCodec);
+        try {
+            this.snapshot = (builder.snapshotFile == null) ? null
+                    : Snapshot.open(builder.snapshotFile, (ValueCodec<K>) (Object) builder.snapshotKeyCodec,
+                            (ValueCodec<V>) (Object) builder.snapshotValueCodec, ticker);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not restore cache from " + builder.snapshotFile, e);
+        }
+        this.hedger = (builder.hedgePercentile == BoundedPolicy.UNSET) ? null
+                : new Hedger(builder.hedgePercentile, builder.maximumHedgeRate);
+        this.nearCache = (builder.nearCacheEntries == 0) ? null : new NearCache<>(builder.nearCacheEntries);
+        if (builder.maximumSize != BoundedPolicy.UNSET || builder.sweepIntervalNanos != BoundedPolicy.UNSET) {
+            this.policy = new BoundedPolicy<>(cache, builder.maximumSize, weigher != null,
+                    builder.sweepIntervalNanos != BoundedPolicy.UNSET,
+                    builder.sweepIntervalNanos, ticker, stats, (offHeap == null) ? null : offHeap::retire);
+        } else {
+            this.policy = null;
+        }
+        InvalidationBus<K> invalidations = null;
+        try {
+            // last, as other instances' invalidations may arrive immediately
+            invalidations = (builder.invalidationTransport == null) ? null
+                    : new InvalidationBus<>(builder.invalidationTransport,
+                            (ValueCodec<K>) (Object) builder.invalidationKeyCodec,
+                            builder.invalidationBatchDelayNanos, backgroundExecutor, this::removeLocally,
+                            this::clearLocally);
+            if (mxBean != null) {
+                // after everything else which may fail, as a cache which fails
+                // to build cannot be closed to unregister it
+                mxBean.register();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the caller has no cache to close
+            if (invalidations != null) {
+                invalidations.close();
+            }
+            if (policy != null) {
+                policy.close();
+            }
+            if (e instanceof IOException) {
+                throw new UncheckedIOException("Could not start invalidation transport", (IOException) e);
+            }
+            throw (RuntimeException) e;
+        }
+        this.invalidations = invalidations;
+        // other instances are only told of a put once its value has been
+        // written, so that they do not reload the old one
+        this.writeBehind = (builder.cacheWriter == null) ? null
+                : new WriteBehind<>((CacheWriter<K, V>) builder.cacheWriter, builder.writeDelayNanos,
+                        builder.maximumWriteBatchSize, backgroundExecutor,
+                        (invalidations == null) ? null : invalidations::publish);
+    }
+
+    /**
+     * Returns a builder for a MaximumStalenessCache with options beyond those
+     * offered by the constructors.
+     *
+     * @param maximumStalenessMillis
+     *            the maximum number of milliseconds that can elapse from the last
+     *            time that any key was requested
+     */
+    public static Builder<Object, Object> builder(long maximumStalenessMillis) {
+        return new Builder<>(maximumStalenessMillis);
     }
 
     /**
@@ -94,77 +329,1009 @@ public class MaximumStalenessCache<K, V> implements Cache<K, V> {
      */
     @Override
     public V get(K key) throws InterruptedException {
+        if (nearCache == null) {
+            return valueOf(resultFor(key));
+        }
+        Object near = nearCache.get(key, ticker.read());
+        if (near != NearCache.MISS) {
+            if (stats != null) {
+                stats.recordHit();
+            }
+            @SuppressWarnings("unchecked")
+            V value = (V) near;
+            return value;
+        }
+        long generation = nearCache.generation(key);
+        Result<K, V> result = resultFor(key);
+        V value = valueOf(result);
+        if (!result.isFailed() && !result.data.isCompletedExceptionally()) {
+            nearCache.put(key, value, nearValidUntil(result), generation);
+        }
+        return value;
+    }
 
-        // look for value in cache
-        Result<V> validResult = cache.computeIfPresent(key, (k, r) -> {
-            // there is a result in the cache
-            if (Long.compare(r.startedAt, System.nanoTime() - maximumStalenessNanos) > 0) {
-                // result is still valid; return it
-                return r;
-            } else {
-                // result is not valid (started loading result too long ago)
-                return null;
+    // the time until which a value may be served from the near cache: until it
+    // is stale, or due for a refresh which only a request to the shared map
+    // would start
+    private long nearValidUntil(Result<K, V> result) {
+        long validFor = result.maximumStalenessNanos;
+        if (refreshAfterNanos != BoundedPolicy.UNSET) {
+            validFor = Math.min(validFor, refreshAfterNanos);
+        }
+        return result.startedAt + validFor;
+    }
+
+    /**
+     * Returns the value for the key as {@link #get(Object)} does, but waits at
+     * most the given time for it to be computed. If the wait times out and the
+     * cache was built with {@link Builder#serveStaleOnTimeout()}, the value
+     * being re-computed is returned instead, if there is one. The computation
+     * continues for other callers either way.
+     *
+     * @param key
+     *            the key to return the value for
+     * @param timeout
+     *            the longest time to wait
+     * @param unit
+     *            the unit of timeout
+     * @throws TimeoutException
+     *             if the value was not computed in time, and no stale value
+     *             was returned instead
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Result<K, V> result = resultFor(key);
+        for (;;) {
+            V value;
+            try {
+                value = result.data.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not compute value for key " + key, e.getCause());
+            } catch (TimeoutException e) {
+                Object stale = serveStaleOnTimeout ? staleValueOf(result) : OffHeapStore.FREED_VALUE;
+                if (stale == OffHeapStore.FREED_VALUE) {
+                    throw new TimeoutException("Timed out waiting for the value for key " + key);
+                }
+                return (V) stale;
+            }
+            if (offHeap == null) {
+                return value;
             }
+            Object stored = offHeap.read(result, value);
+            if (stored != OffHeapStore.FREED_VALUE) {
+                return (V) stored;
+            }
+            // as for valueOf()
+            result = resultFor(key);
+        }
+    }
+
+    // the last computed value for the key while the result is computing its
+    // replacement, or FREED_VALUE if there is none
+    private Object staleValueOf(Result<K, V> result) {
+        Result<K, V> stale = result.previous;
+        if (stale == null) {
+            // waiting for a refresh, which leaves the stale result in the map
+            stale = cache.get(result.key);
+        }
+        if (stale == null || stale == result || !stale.data.isDone() || stale.data.isCompletedExceptionally()) {
+            return OffHeapStore.FREED_VALUE;
+        }
+        return completedValueOf(stale);
+    }
+
+    /**
+     * Returns a future for a value with the same staleness guarantee as get(),
+     * without blocking the caller while the value is computed.
+     */
+    @Override
+    public CompletableFuture<V> getAsync(K key) {
+        return futureValueOf(resultFor(key));
+    }
+
+    /**
+     * Returns values for all of the given keys, with the same staleness
+     * guarantee as get(). Keys with fresh values are served from the cache. If
+     * the cache was built with a bulk value computer, all other keys are
+     * computed together in a single call to it; otherwise each is computed
+     * separately, in parallel.
+     */
+    @Override
+    public Map<K, V> getAll(Iterable<? extends K> keys) throws InterruptedException {
+        Map<K, Result<K, V>> results = resultsFor(keys);
+        Map<K, V> values = new LinkedHashMap<>();
+        for (Map.Entry<K, Result<K, V>> entry : results.entrySet()) {
+            values.put(entry.getKey(), valueOf(entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Returns a future for the values of all of the given keys, computed as
+     * for getAll(), without blocking the caller.
+     */
+    @Override
+    public CompletableFuture<Map<K, V>> getAllAsync(Iterable<? extends K> keys) {
+        Map<K, CompletableFuture<V>> results = new LinkedHashMap<>();
+        for (Map.Entry<K, Result<K, V>> entry : resultsFor(keys).entrySet()) {
+            results.put(entry.getKey(), futureValueOf(entry.getValue()));
+        }
+        return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<K, V> values = new LinkedHashMap<>();
+            for (Map.Entry<K, CompletableFuture<V>> entry : results.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().join());
+            }
+            return values;
         });
+    }
 
-        // was a sufficiently fresh value returned from the cache?
-        if (validResult == null) {
-            // no - compute one
+    // returns a fresh result for the key, starting to compute one if necessary
+    private Result<K, V> resultFor(K key) {
+        long now = ticker.read();
 
-            // computeIfAbsent ensures that only one thread competing on this call will
-            // succeed,
-            // and all will be returned the same single result
+        // look for value in cache; a fresh result is returned without locking
+        Result<K, V> validResult = cache.get(key);
 
-            // this creates a future with the result
-            validResult = cache.computeIfAbsent(key, k -> createResult(k));
+        if (validResult != null && isFresh(validResult, now)) {
+            afterHit(validResult, now);
+        } else {
+            // missing or not valid (started loading result too long ago) - compute one
+            if (stats != null) {
+                stats.recordMiss();
+            }
+            validResult = load(key, validResult);
         }
+        return validResult;
+    }
+
+    private Map<K, Result<K, V>> resultsFor(Iterable<? extends K> keys) {
+        long now = ticker.read();
+        Map<K, Result<K, V>> results = new LinkedHashMap<>();
+        Map<K, Result<K, V>> batch = new LinkedHashMap<>();
 
         try {
-            // return the value of the future, which may be a blocking call
-            return validResult.data.get();
-        } catch (ExecutionException e) {
-            throw new RuntimeException("Could not compute value for key " + key, e.getCause());
+            for (K key : keys) {
+                if (results.containsKey(key)) {
+                    continue;
+                }
+                Result<K, V> validResult = cache.get(key);
+                if (validResult != null && isFresh(validResult, now)) {
+                    afterHit(validResult, now);
+                    results.put(key, validResult);
+                    continue;
+                }
+
+                if (stats != null) {
+                    stats.recordMiss();
+                }
+                Result<K, V> existing = existingComputation(key, validResult);
+                if (existing != null) {
+                    validResult = existing;
+                } else if (bulkValueComputer == null) {
+                    validResult = load(key, validResult);
+                } else {
+                    // install now, compute later with the rest of the batch
+                    Result<K, V> created = new Result<>(key, ticker.read(), maximumStalenessNanos, new CompletableFuture<>());
+                    validResult = install(key, validResult, created);
+                    if (validResult == created) {
+                        batch.put(key, created);
+                    }
+                }
+                results.put(key, validResult);
+            }
+        } finally {
+            // installed results must be computed even if iterating failed, as
+            // other threads may be waiting for them
+            if (!batch.isEmpty()) {
+                startBatch(batch);
+            }
+        }
+        return results;
+    }
+
+    private boolean isFresh(Result<K, V> result, long now) {
+        long staleness = result.maximumStalenessNanos;
+        if (result.isFailed() && retryFailuresAfterNanos != BoundedPolicy.UNSET) {
+            // retry failed computations sooner than the staleness bound
+            staleness = retryDelayNanos(result.failures);
+        }
+        return Long.compare(result.startedAt, now - staleness) > 0;
+    }
+
+    // exponential backoff for the given number of consecutive failures
+    private long retryDelayNanos(int failures) {
+        long delay = retryFailuresAfterNanos;
+        for (int i = 1; i < failures && delay < maximumRetryDelayNanos; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maximumRetryDelayNanos);
+    }
+
+    private void afterHit(Result<K, V> result, long now) {
+        if (stats != null) {
+            stats.recordHit();
+        }
+        if (refreshAfterNanos != BoundedPolicy.UNSET && Long.compare(result.startedAt, now - refreshAfterNanos) <= 0) {
+            // valid, but due for a refresh; keep returning it in the meantime
+            refresh(result);
+        }
+        if (policy != null) {
+            policy.recordRead(result, now);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueOf(Result<K, V> result) throws InterruptedException {
+        for (;;) {
+            V value;
+            try {
+                // return the value of the future, which may be a blocking call
+                value = result.data.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not compute value for key " + result.key, e.getCause());
+            }
+            if (offHeap == null) {
+                return value;
+            }
+            Object stored = offHeap.read(result, value);
+            if (stored != OffHeapStore.FREED_VALUE) {
+                return (V) stored;
+            }
+            // the result was removed, and its value freed, before it could be
+            // read; the cache holds a newer one
+            result = resultFor(result.key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<V> futureValueOf(Result<K, V> result) {
+        if (offHeap == null) {
+            // a dependent future, so that callers cannot complete the shared one
+            return result.data.thenApply(Function.identity());
+        }
+        return result.data.thenCompose(value -> {
+            Object stored = offHeap.read(result, value);
+            // as for valueOf(), a freed value means that a newer one is cached
+            return (stored == OffHeapStore.FREED_VALUE) ? getAsync(result.key)
+                    : CompletableFuture.completedFuture((V) stored);
+        });
+    }
+
+    // the value of a completed result, for as long as it has not been retired
+    private V completedValueOf(Result<K, V> result) {
+        V value = result.data.join();
+        if (offHeap == null) {
+            return value;
+        }
+        @SuppressWarnings("unchecked")
+        V stored = (V) offHeap.read(result, value);
+        return stored;
+    }
+
+    // computes a new result for the key in place of the missing or stale one,
+    // unless another thread has already done so
+    private Result<K, V> load(K key, Result<K, V> stale) {
+        Result<K, V> existing = existingComputation(key, stale);
+        if (existing != null) {
+            return existing;
+        }
+        Result<K, V> created = new Result<>(key, ticker.read(), maximumStalenessNanos, new CompletableFuture<>());
+        Result<K, V> installed = install(key, stale, created);
+        if (installed == created) {
+            start(created);
+        }
+        return installed;
+    }
+
+    // returns a result for the missing or stale one which needs no new
+    // computation, or null if there is none: the result a refresh of the stale
+    // one is already computing, or one restored from a snapshot
+    private Result<K, V> existingComputation(K key, Result<K, V> stale) {
+        if (stale != null) {
+            return stale.replacement;
+        }
+        return restore(key);
+    }
+
+    // installs the value saved in the snapshot the cache was restored from, if
+    // it holds a fresh one for a key which has not been loaded since; returns
+    // null if not
+    private Result<K, V> restore(K key) {
+        if (snapshot == null) {
+            return null;
+        }
+        long removals = snapshot.removals(key);
+        Snapshot.Entry<V> entry = snapshot.take(key);
+        if (entry == null) {
+            return null;
+        }
+        Result<K, V> restored = new Result<>(key, entry.startedAt, entry.maximumStalenessNanos,
+                new CompletableFuture<>());
+        restored.loaded();
+        complete(restored, entry.value);
+        if (restored.data.isCompletedExceptionally() || !isFresh(restored, ticker.read())) {
+            retire(restored);
+            return null;
+        }
+        Result<K, V> installed = install(key, null, restored);
+        Result<K, V> replaced = restored.previous;
+        restored.previous = null;
+        retire((installed == restored) ? replaced : restored);
+        if (installed == restored && snapshot.removals(key) != removals) {
+            // the key was removed after the value was taken, perhaps before it
+            // was installed, when the removal would have missed it
+            if (cache.remove(key, restored)) {
+                if (policy != null) {
+                    policy.recordRemoval(restored);
+                    policy.afterWrite();
+                }
+                retire(restored);
+            }
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            return null;
+        }
+        return installed;
+    }
+
+    // installs the created result for the key in place of the missing or stale
+    // one; putIfAbsent and replace ensure that only one of the threads competing
+    // for the key succeeds, and all are returned the same single result. The
+    // caller must start computing the result if it is the one returned.
+    private Result<K, V> install(K key, Result<K, V> stale, Result<K, V> created) {
+        if (closed) {
+            throw new IllegalStateException("cache is closed");
+        }
+        for (;;) {
+            Result<K, V> existing;
+            created.previous = stale;
+            if (stale == null) {
+                existing = cache.putIfAbsent(key, created);
+                if (existing == null) {
+                    if (policy != null) {
+                        policy.recordAdd(created);
+                        policy.afterWrite();
+                    }
+                    return created;
+                }
+            } else if (cache.replace(key, stale, created)) {
+                if (stats != null) {
+                    stats.recordStaleReload();
+                }
+                if (policy != null) {
+                    policy.recordReplacement(stale, created);
+                    policy.afterWrite();
+                }
+                return created;
+            } else {
+                existing = cache.get(key);
+            }
+
+            if (existing != null && isFresh(existing, ticker.read())) {
+                // another thread got there first
+                return existing;
+            }
+            stale = existing;
+        }
+    }
+
+    /**
+     * Closes the cache: stops background expiry and removes all pre-computed
+     * values. Computations already in progress run to completion, but requests
+     * for values which are not already cached fail with an
+     * IllegalStateException. An executor supplied to the builder is not shut
+     * down, as it may be shared.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+        if (invalidations != null) {
+            invalidations.close();
+        }
+        if (policy != null) {
+            policy.close();
+        }
+        if (mxBean != null) {
+            mxBean.unregister();
+        }
+        // the other instances remain open
+        clearLocally();
+    }
+
+    /**
+     * Saves the fresh values in the cache to a file, from which a cache built
+     * with {@link Builder#restoreFrom(Path, ValueCodec, ValueCodec)} can serve
+     * them for as long as they remain fresh, for example after a restart. The
+     * file is written in full before it replaces any existing file of the same
+     * name. Values still being computed, and failures, are not saved.
+     *
+     * @param file
+     *            the file to write
+     * @param keyCodec
+     *            converts keys to bytes
+     * @param valueCodec
+     *            converts values to bytes
+     */
+    @SuppressWarnings("unchecked")
+    public void snapshot(Path file, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        long now = ticker.read();
+        // ages are carried over relative to the wall clock at the same moment
+        long nowMillis = System.currentTimeMillis();
+        try (Snapshot.Writer<K, V> writer = new Snapshot.Writer<>(file, keyCodec, valueCodec)) {
+            for (Result<K, V> result : cache.values()) {
+                if (!result.data.isDone() || result.data.isCompletedExceptionally() || result.isFailed()
+                        || !isFresh(result, now)) {
+                    continue;
+                }
+                Object value = completedValueOf(result);
+                if (value != OffHeapStore.FREED_VALUE) {
+                    writer.write(result.key, (V) value, now - result.startedAt, result.maximumStalenessNanos);
+                }
+            }
+            writer.commit(nowMillis);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics recorded for this cache, which are
+     * all zero unless the cache was built with {@link Builder#recordStats()}.
+     */
+    public CacheStats stats() {
+        return (stats == null) ? CacheStats.empty() : stats.snapshot();
+    }
+
+    /**
+     * Returns the approximate number of entries in the cache, including those
+     * which are stale or still being computed.
+     */
+    public long estimatedSize() {
+        return cache.mappingCount();
+    }
+
+    /**
+     * Caches the value for the key in place of any computed or being computed,
+     * as if it had just been computed, and writes it to the cache's writer if
+     * it has one. Other instances of the cache which receive its invalidations
+     * remove the key, once the value has been written if there is a writer.
+     *
+     * @param key
+     *            the key to cache the value for
+     * @param value
+     *            the new value, or null if the key has no value
+     * @throws IllegalStateException
+     *             if the cache is closed
+     * @throws RuntimeException
+     *             if the cache's weigher or expiry fails for the value, in
+     *             which case the key is removed instead, and nothing is written
+     */
+    public void put(K key, V value) {
+        if (closed) {
+            throw new IllegalStateException("cache is closed");
+        }
+        Result<K, V> created = new Result<>(key, ticker.read(), maximumStalenessNanos, new CompletableFuture<>());
+        created.loaded();
+        complete(created, value);
+        if (created.data.isCompletedExceptionally()) {
+            removeLocally(key);
+            try {
+                created.data.join();
+            } catch (CompletionException e) {
+                // the weigher's or expiry's exception
+                throw (RuntimeException) e.getCause();
+            }
+        }
+
+        if (snapshot != null) {
+            // or once the new value is evicted, a get would restore the saved
+            // value in its place
+            snapshot.remove(key);
+        }
+        Result<K, V> replaced = cache.put(key, created);
+        if (policy != null) {
+            if (replaced == null) {
+                policy.recordAdd(created);
+            } else {
+                policy.recordReplacement(replaced, created);
+            }
+            policy.afterWrite();
+        }
+        // a computation in progress for the replaced result still completes it
+        // for the callers waiting for it, but it is no longer cached
+        retire(replaced);
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+
+        if (writeBehind != null) {
+            writeBehind.enqueue(key, value);
+        } else if (invalidations != null) {
+            invalidations.publish(key);
         }
     }
 
     /**
-     * Removes all pre-computed values from the cache.
+     * Caches each of the values as for {@link #put(Object, Object)}.
+     *
+     * @param values
+     *            the new values for their keys
+     */
+    public void putAll(Map<? extends K, ? extends V> values) {
+        for (Map.Entry<? extends K, ? extends V> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes all pre-computed values from the cache, and from its other
+     * instances if it broadcasts invalidations.
      */
     public void clear() {
-        cache.clear();
+        clearLocally();
+        if (invalidations != null) {
+            invalidations.publishClear();
+        }
+    }
+
+    private void clearLocally() {
+        if (snapshot != null) {
+            // or a later get would restore the value saved before the clear
+            snapshot.clear();
+        }
+        if (policy == null && offHeap == null) {
+            cache.clear();
+        } else {
+            // remove one at a time so that the policy and store see every removal
+            for (K key : cache.keySet()) {
+                removeLocally(key);
+            }
+        }
+        if (nearCache != null) {
+            nearCache.invalidateAll();
+        }
     }
 
     /**
-     * Removes a single pre-computed value from the cache.
+     * Removes a single pre-computed value from the cache, and from its other
+     * instances if it broadcasts invalidations.
      *
      * @param key
      *            the key for the cache entry to be removed
      */
     public void remove(K key) {
-        cache.remove(key);
-    }
-
-    private Result<V> createResult(final K key) {
-        return new Result<>(System.nanoTime(), resourcePool.submit(() -> {
-            if (blockingValueComputer != null) {
-                // execute long-running, blocking computation
-                Blocker<K, V> blocker = new Blocker<>(blockingValueComputer, key);
-                // managedBlock ensures that enough threads are spun up for blocking methods to
-                // prevent thread stavation
-                ForkJoinPool.managedBlock(blocker);
-                // extract result, as when managedBlock is done, the blocking computation is
-                // finished
-                return blocker.getItem();
+        removeLocally(key);
+        if (invalidations != null) {
+            invalidations.publish(key);
+        }
+    }
+
+    private void removeLocally(K key) {
+        if (snapshot != null) {
+            // before the entry goes, so that no get restores the saved value
+            snapshot.remove(key);
+        }
+        Result<K, V> removed = cache.remove(key);
+        if (removed != null && policy != null) {
+            policy.recordRemoval(removed);
+            policy.afterWrite();
+        }
+        if (removed != null && offHeap != null) {
+            offHeap.retire(removed);
+        }
+        if (nearCache != null) {
+            // even if the map no longer held the key, threads may still do
+            nearCache.invalidate(key);
+        }
+    }
+
+    // computes all of the results with a single call to the bulk value computer
+    private void startBatch(final Map<K, Result<K, V>> batch) {
+        for (Result<K, V> result : batch.values()) {
+            scheduleTimeout(result, () -> timeOut(result));
+        }
+        execute(batch.values(), () -> {
+            Map<K, V> values;
+            // a timeout of any result interrupts the whole batch, but all of
+            // them time out together
+            for (Result<K, V> result : batch.values()) {
+                result.startComputing();
+            }
+            try {
+                values = computeValues(Collections.unmodifiableSet(new LinkedHashSet<>(batch.keySet())));
+            } catch (Throwable t) {
+                for (Result<K, V> result : batch.values()) {
+                    fail(result, t);
+                }
+                return;
+            } finally {
+                for (Result<K, V> result : batch.values()) {
+                    result.stopComputing();
+                }
+            }
+            // keys missing from the returned map have no value, and are cached
+            // as absent in the same way as a null value
+            for (Result<K, V> result : batch.values()) {
+                succeed(result, values == null ? null : values.get(result.key));
+            }
+        });
+    }
+
+    private void start(final Result<K, V> result) {
+        scheduleTimeout(result, () -> timeOut(result));
+        if (hedger != null) {
+            new HedgedLoad(result).start();
+            return;
+        }
+        execute(Collections.singleton(result), () -> {
+            V value;
+            try {
+                value = computeValue(result);
+            } catch (Throwable t) {
+                fail(result, t);
+                return;
+            }
+            succeed(result, value);
+        });
+    }
+
+    private void succeed(Result<K, V> result, V value) {
+        if (!result.finish(Result.LOADED)) {
+            // timed out
+            return;
+        }
+        if (stats != null) {
+            stats.recordLoadSuccess(ticker.read() - result.startedAt);
+        }
+        Result<K, V> previous = result.previous;
+        result.previous = null;
+        complete(result, value);
+        retire(previous);
+    }
+
+    private void complete(Result<K, V> result, V value) {
+        int weight = 0;
+        try {
+            if (weigher != null) {
+                weight = weigher.weigh(result.key, value);
+                if (weight < 0) {
+                    throw new IllegalStateException("negative weight " + weight + " for key " + result.key);
+                }
+            }
+            if (expiry != null) {
+                long stalenessMillis = expiry.maximumStalenessMillis(result.key, value);
+                if (stalenessMillis < 0) {
+                    throw new IllegalStateException(
+                            "negative staleness " + stalenessMillis + " for key " + result.key);
+                }
+                // set before completing, so that the value is never judged by
+                // the cache's bound once it is available; saturated, as an
+                // expiry may mean "never stale" by a very large bound
+                result.maximumStalenessNanos = TimeUnit.MILLISECONDS.toNanos(stalenessMillis);
+            }
+        } catch (RuntimeException e) {
+            result.failed();
+            result.data.completeExceptionally(e);
+            return;
+        }
+
+        if (offHeap != null && offHeap.store(result, value)) {
+            // readers decode the stored value once the future is done
+            result.data.complete(null);
+        } else {
+            result.data.complete(value);
+        }
+
+        if (policy != null && (weigher != null || expiry != null)) {
+            policy.recordCompletion(result, weight);
+            policy.afterWrite();
+        }
+    }
+
+    // runs onTimeout if the result has not been completed within the load
+    // timeout. It completes futures, whose callbacks must not hold up the
+    // Scheduler's thread, so it runs on the resource pool; not on the cache's
+    // executor, which the loads timing out may be occupying.
+    private void scheduleTimeout(Result<K, V> result, Runnable onTimeout) {
+        if (loadTimeoutNanos == BoundedPolicy.UNSET) {
+            return;
+        }
+        ScheduledFuture<?> timeout = Scheduler.schedule(() -> resourcePool.execute(onTimeout), loadTimeoutNanos,
+                TimeUnit.NANOSECONDS);
+        result.data.whenComplete((value, t) -> timeout.cancel(false));
+    }
+
+    // fails a load which has taken too long, and interrupts its computation so
+    // that a hung backend does not hold on to the executor's threads. The
+    // failed result stays cached like any other, so that requests back off
+    // rather than start a new computation against that backend each time.
+    private void timeOut(Result<K, V> result) {
+        if (result.data.isDone()) {
+            return;
+        }
+        fail(result, timeoutFor(result.key));
+        result.interruptComputations();
+    }
+
+    private TimeoutException timeoutFor(K key) {
+        return new TimeoutException(
+                "Computing the value for key " + key + " took longer than " + (loadTimeoutNanos / 1000000) + " ms");
+    }
+
+    // frees the stored value of a result replaced by a computation, which is
+    // kept until the computation completes in case it is needed to serve stale
+    private void retire(Result<K, V> replaced) {
+        if (replaced != null && offHeap != null) {
+            offHeap.retire(replaced);
+        }
+    }
+
+    // records the failure, for backoff, and either fails the result or, if so
+    // configured, completes it with the last successfully computed value
+    private void fail(Result<K, V> result, Throwable t) {
+        if (!result.finish(Result.FAILED)) {
+            // already completed, or timed out
+            return;
+        }
+        if (stats != null) {
+            stats.recordLoadFailure(ticker.read() - result.startedAt);
+        }
+        Result<K, V> previous = result.previous;
+        result.previous = null;
+        result.failures = (previous != null && previous.isFailed()) ? previous.failures + 1 : 1;
+
+        if (serveStaleOnFailure && previous != null && previous.data.isDone()
+                && !previous.data.isCompletedExceptionally()) {
+            complete(result, completedValueOf(previous));
+        } else {
+            result.data.completeExceptionally(t);
+        }
+        retire(previous);
+    }
+
+    // fails the results if the executor will not run the computation, rather
+    // than leaving callers waiting for them forever
+    private void execute(Collection<Result<K, V>> results, Runnable computation) {
+        execute(computation, e -> {
+            for (Result<K, V> result : results) {
+                fail(result, e);
+            }
+        });
+    }
+
+    // a bulkhead may only find that its executor rejects a computation after
+    // queueing it, so it reports the rejection to the handler when it does
+    private void execute(Runnable computation, Consumer<RejectedExecutionException> onRejection) {
+        if (executor instanceof BulkheadExecutor) {
+            ((BulkheadExecutor) executor).execute(computation, onRejection);
+            return;
+        }
+        try {
+            executor.execute(computation);
+        } catch (RejectedExecutionException e) {
+            onRejection.accept(e);
+        }
+    }
+
+    // re-computes the value in the background, replacing the stale result only
+    // once the new value is available. Until then, requests which find the
+    // result stale wait for the new value rather than computing another.
+    private void refresh(final Result<K, V> stale) {
+        if (closed || !stale.data.isDone() || !stale.startRefresh()) {
+            // still loading, or another caller has already started a refresh
+            return;
+        }
+        final long startedAt = ticker.read();
+        if (stale.refreshFailures > 0 && Long.compare(startedAt, stale.retryRefreshAt) < 0) {
+            // backing off after a failed refresh
+            stale.endRefresh();
+            return;
+        }
+        if (stats != null) {
+            stats.recordRefresh();
+        }
+        final Result<K, V> fresh = new Result<>(stale.key, startedAt, maximumStalenessNanos,
+                new CompletableFuture<>());
+        stale.replacement = fresh;
+        Runnable computation = () -> {
+            V value;
+            try {
+                value = computeValue(fresh);
+            } catch (Throwable e) {
+                // including Errors, as requests may be waiting for the refresh
+                if (stats != null) {
+                    stats.recordLoadFailure(ticker.read() - startedAt);
+                }
+                // keep serving the existing value; a later request will try again
+                if (retryFailuresAfterNanos != BoundedPolicy.UNSET) {
+                    stale.refreshFailures++;
+                    stale.retryRefreshAt = ticker.read() + retryDelayNanos(stale.refreshFailures);
+                }
+                abandonRefresh(stale, fresh, e);
+                return;
+            }
+            if (!fresh.finish(Result.LOADED)) {
+                // timed out
+                return;
+            }
+            if (stats != null) {
+                stats.recordLoadSuccess(ticker.read() - startedAt);
+            }
+            complete(fresh, value);
+            // if the stale result has been removed or replaced in the meantime, the
+            // new value is discarded
+            if (cache.replace(stale.key, stale, fresh)) {
+                if (policy != null) {
+                    policy.recordReplacement(stale, fresh);
+                    policy.afterWrite();
+                }
+                retire(stale);
             } else {
-                return nonBlockingValueComputer.apply(key);
+                retire(fresh);
             }
-        }));
+            stale.replacement = null;
+        };
+        execute(computation, e -> abandonRefresh(stale, fresh, e));
+        scheduleTimeout(fresh, () -> {
+            abandonRefresh(stale, fresh, timeoutFor(stale.key));
+            fresh.interruptComputations();
+        });
+    }
+
+    // gives requests which were waiting for a failed refresh the existing value
+    // if so configured, or the failure, and lets later requests compute anew
+    private void abandonRefresh(Result<K, V> stale, Result<K, V> fresh, Throwable t) {
+        if (!fresh.finish(Result.FAILED)) {
+            // already completed, or timed out
+            return;
+        }
+        stale.replacement = null;
+        Object value = stale.data.isCompletedExceptionally() ? OffHeapStore.FREED_VALUE : completedValueOf(stale);
+        if (serveStaleOnFailure && value != OffHeapStore.FREED_VALUE) {
+            @SuppressWarnings("unchecked")
+            V existing = (V) value;
+            // never installed, so there is nothing to store off-heap or weigh
+            fresh.data.complete(existing);
+        } else {
+            fresh.data.completeExceptionally(t);
+        }
+        stale.endRefresh();
+    }
+
+    // must be run by the executor; the computation is interrupted if the
+    // result's load times out
+    private V computeValue(Result<K, V> result) throws InterruptedException {
+        if (loadTimeoutNanos == BoundedPolicy.UNSET) {
+            return computeValue(result.key);
+        }
+        if (!result.startComputing()) {
+            throw new InterruptedException("timed out before starting");
+        }
+        try {
+            return computeValue(result.key);
+        } finally {
+            result.stopComputing();
+        }
+    }
+
+    // must be run by the executor
+    private V computeValue(K key) throws InterruptedException {
+        if (blockingValueComputer != null) {
+            // execute long-running, blocking computation
+            Blocker<K, V> blocker = new Blocker<>(blockingValueComputer, key);
+            // managedBlock ensures that enough threads are spun up for blocking methods to
+            // prevent thread stavation
+            ForkJoinPool.managedBlock(blocker);
+            // extract result, as when managedBlock is done, the blocking computation is
+            // finished
+            return blocker.getItem();
+        } else {
+            return nonBlockingValueComputer.apply(key);
+        }
     }
 
-    private static class Blocker<A, B> implements ManagedBlocker {
+    // must be run by the executor
+    private Map<K, V> computeValues(Set<K> keys) throws InterruptedException {
+        Blocker<Set<K>, Map<K, V>> blocker = new Blocker<>(bulkValueComputer, keys);
+        ForkJoinPool.managedBlock(blocker);
+        return blocker.getItem();
+    }
+
+    /**
+     * A load which is given a second attempt if the first is slow. The first
+     * attempt to succeed completes the result; a failure only completes it once
+     * no other attempt is still running, so a hedge also covers a primary
+     * attempt which fails.
+     */
+    private final class HedgedLoad {
+        private final Result<K, V> result;
+        // attempts started and not yet finished
+        private final AtomicInteger running = new AtomicInteger(1);
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile ScheduledFuture<?> hedge;
+
+        HedgedLoad(Result<K, V> result) {
+            this.result = result;
+        }
+
+        void start() {
+            execute(Collections.singleton(result), this::attempt);
+            if (!result.data.isDone()) {
+                // a rejected hedge fails the result, so off the Scheduler's
+                // thread as for timeouts
+                hedge = hedger.schedule(() -> resourcePool.execute(this::hedge));
+            }
+        }
+
+        // run once the load has taken longer than usual
+        private void hedge() {
+            // the result may also have been completed by a load timeout
+            if (completed.get() || result.data.isDone() || !hedger.tryAcquire()) {
+                return;
+            }
+            int attempts;
+            do {
+                attempts = running.get();
+                if (attempts == 0) {
+                    // the load has just failed
+                    return;
+                }
+            } while (!running.compareAndSet(attempts, attempts + 1));
+            if (stats != null) {
+                stats.recordHedge();
+            }
+            execute(this::attempt, this::finish);
+        }
+
+        // must be run by the executor
+        private void attempt() {
+            long startedAt = ticker.read();
+            V value = null;
+            Throwable failure = null;
+            try {
+                value = computeValue(result);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            // every attempt's time counts, whether it failed or lost to the
+            // other attempt, or the delay would only reflect the fastest loads
+            hedger.recordLoad(ticker.read() - startedAt);
+            if (failure != null) {
+                finish(failure);
+                return;
+            }
+            running.decrementAndGet();
+            if (completed.compareAndSet(false, true)) {
+                cancelHedge();
+                succeed(result, value);
+            }
+        }
+
+        private void finish(Throwable t) {
+            if (running.decrementAndGet() == 0 && completed.compareAndSet(false, true)) {
+                cancelHedge();
+                fail(result, t);
+            }
+        }
+
+        private void cancelHedge() {
+            ScheduledFuture<?> scheduled = hedge;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    static class Blocker<A, B> implements ManagedBlocker {
         private final A key;
         private final BlockingFunction<A, B> cacheLoader;
-        private volatile B item;
+        private B item;
+        // tracked separately from item, as null is a valid computed value;
+        // the write to done publishes item
+        private volatile boolean done;
 
         public Blocker(BlockingFunction<A, B> cacheLoader, A key) {
             this.key = key;
@@ -173,15 +1340,16 @@ public class MaximumStalenessCache<K, V> implements Cache<K, V> {
 
         @Override
         public boolean block() throws InterruptedException {
-            if (item == null) {
+            if (!done) {
                 item = cacheLoader.apply(key);
+                done = true;
             }
             return true; // no additional blocking is necessary
         }
 
         @Override
         public boolean isReleasable() {
-            return item != null;
+            return done;
         }
 
         public B getItem() {
@@ -189,19 +1357,516 @@ public class MaximumStalenessCache<K, V> implements Cache<K, V> {
         }
     }
 
-    private static class Result<V> {
-        private final long startedAt;
-        private final Future<V> data;
+    /**
+     * Configures and creates MaximumStalenessCache instances. For example:
+     *
+     * <pre>
+     * MaximumStalenessCache&lt;String, Long&gt; cache = MaximumStalenessCache.builder(1000)
+     *         .maximumSize(10000)
+     *         .expireStaleEntries(100)
+     *         .build(blockingValueComputer);
+     * </pre>
+     */
+    public static final class Builder<K, V> {
+        private final long maximumStalenessNanos;
+        private long maximumSize = BoundedPolicy.UNSET;
+        private long sweepIntervalNanos = BoundedPolicy.UNSET;
+        private long refreshAfterNanos = BoundedPolicy.UNSET;
+        private long retryFailuresAfterNanos = BoundedPolicy.UNSET;
+        private long maximumRetryDelayNanos = BoundedPolicy.UNSET;
+        private boolean serveStaleOnFailure;
+        private long loadTimeoutNanos = BoundedPolicy.UNSET;
+        private boolean serveStaleOnTimeout;
+        private Ticker ticker = Ticker.systemTicker();
+        private BlockingFunction<Set<K>, Map<K, V>> bulkValueComputer;
+        private Executor executor;
+        private int maximumConcurrentComputations;
+        private boolean recordStats;
+        private String mbeanName;
+        private Weigher<?, ?> weigher;
+        private Expiry<?, ?> expiry;
+        private ValueCodec<?> valueCodec;
+        private Path snapshotFile;
+        private ValueCodec<?> snapshotKeyCodec;
+        private ValueCodec<?> snapshotValueCodec;
+        private int nearCacheEntries;
+        private InvalidationTransport invalidationTransport;
+        private ValueCodec<?> invalidationKeyCodec;
+        private long invalidationBatchDelayNanos;
+        private CacheWriter<?, ?> cacheWriter;
+        private long writeDelayNanos;
+        private int maximumWriteBatchSize;
+        private double hedgePercentile = BoundedPolicy.UNSET;
+        private double maximumHedgeRate;
+
+        private Builder(long maximumStalenessMillis) {
+            this.maximumStalenessNanos = maximumStalenessMillis * 1000000;
+        }
+
+        /**
+         * Bounds the number of entries the cache may hold. Once exceeded, entries
+         * are evicted based on how recently and how frequently they have been
+         * requested.
+         *
+         * @param maximumSize
+         *            the maximum number of entries the cache may hold
+         */
+        public Builder<K, V> maximumSize(long maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("maximumSize must not be negative");
+            }
+            if (weigher != null) {
+                throw new IllegalStateException("maximumWeight was already set");
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Computes a staleness bound for each value when it is computed, in
+         * place of the one given to {@link MaximumStalenessCache#builder(long)},
+         * so that values for different keys may stay fresh for different
+         * lengths of time. That bound still applies to values while they are
+         * being computed, and to failures.
+         *
+         * @param expiry
+         *            calculates the staleness bound of each value
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> variableStaleness(Expiry<? super K1, ? super V1> expiry) {
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.expiry = Objects.requireNonNull(expiry, "expiry");
+            return self;
+        }
+
+        /**
+         * Bounds the total weight of the entries the cache may hold, such as
+         * their size in bytes, rather than their number. Each entry is weighed
+         * once its value has been computed, and weighs nothing until then. Once
+         * the total is exceeded, entries are evicted as for
+         * {@link #maximumSize(long)}.
+         *
+         * @param maximumWeight
+         *            the maximum total weight of the entries the cache may hold
+         * @param weigher
+         *            calculates the weight of each entry
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> maximumWeight(long maximumWeight,
+                Weigher<? super K1, ? super V1> weigher) {
+            if (maximumWeight < 0) {
+                throw new IllegalArgumentException("maximumWeight must not be negative");
+            }
+            if (maximumSize != BoundedPolicy.UNSET) {
+                throw new IllegalStateException("maximumSize was already set");
+            }
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.weigher = Objects.requireNonNull(weigher, "weigher");
+            self.maximumSize = maximumWeight;
+            return self;
+        }
+
+        /**
+         * Proactively removes entries once they exceed the staleness bound,
+         * rather than only replacing them when their key is next requested.
+         * This keeps memory proportional to the keys in active use.
+         *
+         * @param sweepIntervalMillis
+         *            how often to look for stale entries; entries may remain
+         *            resident for up to this long after becoming stale
+         */
+        public Builder<K, V> expireStaleEntries(long sweepIntervalMillis) {
+            if (sweepIntervalMillis <= 0) {
+                throw new IllegalArgumentException("sweepIntervalMillis must be positive");
+            }
+            this.sweepIntervalNanos = sweepIntervalMillis * 1000000;
+            return this;
+        }
+
+        /**
+         * Re-computes values in the background once they are older than
+         * refreshAfterMillis, while continuing to return the existing value
+         * until the new one is ready or the staleness bound is reached.
+         *
+         * @param refreshAfterMillis
+         *            the age at which a requested value is re-computed; must be
+         *            less than the maximum staleness
+         */
+        public Builder<K, V> refreshAfter(long refreshAfterMillis) {
+            long refreshAfterNanos = refreshAfterMillis * 1000000;
+            if (refreshAfterNanos < 0 || refreshAfterNanos >= maximumStalenessNanos) {
+                throw new IllegalArgumentException(
+                        "refreshAfterMillis must be at least zero and less than maximumStalenessMillis");
+            }
+            this.refreshAfterNanos = refreshAfterNanos;
+            return this;
+        }
+
+        /**
+         * Retries failed computations sooner than the staleness bound, backing
+         * off exponentially while a key keeps failing. Until a failure is due to
+         * be retried, requests for the key fail immediately (or are served the
+         * last good value, with {@link #serveStaleOnFailure()}) instead of
+         * recomputing it. Without this, a failure is kept for the whole
+         * staleness bound.
+         *
+         * @param retryFailuresAfterMillis
+         *            how long a first failure is kept before retrying
+         * @param maximumRetryDelayMillis
+         *            the longest a repeated failure is kept before retrying
+         */
+        public Builder<K, V> retryFailuresAfter(long retryFailuresAfterMillis, long maximumRetryDelayMillis) {
+            if (retryFailuresAfterMillis <= 0 || maximumRetryDelayMillis < retryFailuresAfterMillis) {
+                throw new IllegalArgumentException(
+                        "retryFailuresAfterMillis must be positive and no more than maximumRetryDelayMillis");
+            }
+            this.retryFailuresAfterNanos = retryFailuresAfterMillis * 1000000;
+            this.maximumRetryDelayNanos = maximumRetryDelayMillis * 1000000;
+            return this;
+        }
+
+        /**
+         * Starts a second computation of a value if the first has not
+         * completed after the given percentile of recent computation times,
+         * and completes the value with whichever succeeds first, so that a
+         * single slow call to a backend does not hold up every caller waiting
+         * for the key. The percentile adapts as computation times change, and
+         * computations are only hedged once enough have been observed. Applies
+         * to computations of single keys, but not to bulk computations or
+         * background refreshes.
+         *
+         * @param percentile
+         *            the percentile of computation times after which to hedge,
+         *            such as 95
+         * @param maximumHedgeRate
+         *            the largest fraction of computations which may be hedged,
+         *            such as 0.05, so that a slow backend is not sent much more
+         *            work
+         */
+        public Builder<K, V> hedgeLoads(double percentile, double maximumHedgeRate) {
+            if (!(percentile > 0 && percentile < 100)) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if (!(maximumHedgeRate > 0 && maximumHedgeRate <= 1)) {
+                throw new IllegalArgumentException("maximumHedgeRate must be greater than 0 and at most 1");
+            }
+            this.hedgePercentile = percentile;
+            this.maximumHedgeRate = maximumHedgeRate;
+            return this;
+        }
+
+        /**
+         * Writes the values put into the cache with
+         * {@link MaximumStalenessCache#put(Object, Object)} to the backing store
+         * in the background, on the cache's executor. Values are collected for
+         * writeDelayMillis and written in batches; a key put several times
+         * before it is written is only written with its latest value. Failed
+         * writes are retried with a later batch, backing off exponentially
+         * from at least 100 ms up to 30 s while they keep failing. Closing the
+         * cache waits for the values collected so far to be written once.
+         *
+         * @param writer
+         *            writes batches of values to the backing store
+         * @param writeDelayMillis
+         *            how long to collect values before writing them
+         * @param maximumBatchSize
+         *            the most values to pass to the writer at once
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> writeBehind(CacheWriter<K1, V1> writer,
+                long writeDelayMillis, int maximumBatchSize) {
+            if (writeDelayMillis < 0) {
+                throw new IllegalArgumentException("writeDelayMillis must not be negative");
+            }
+            if (maximumBatchSize <= 0) {
+                throw new IllegalArgumentException("maximumBatchSize must be positive");
+            }
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.cacheWriter = Objects.requireNonNull(writer, "writer");
+            self.writeDelayNanos = writeDelayMillis * 1000000;
+            self.maximumWriteBatchSize = maximumBatchSize;
+            return self;
+        }
+
+        /**
+         * Broadcasts the keys removed from the cache, and clear(), to the
+         * instances of the same cache in other processes, and applies theirs
+         * to it, so that every instance stops serving a removed value soon
+         * after it is removed from any of them rather than once it becomes
+         * stale. This allows longer staleness bounds for data which is
+         * invalidated on write.
+         *
+         * Removals are collected for batchDelayMillis and sent together, with
+         * each key sent once however often it was removed. Delivery is only as
+         * reliable as the transport, and the staleness bound still applies to
+         * values whose invalidation is lost. Entries evicted or expired by the
+         * cache itself are not broadcast.
+         *
+         * @param transport
+         *            connects this instance to the others; used by this cache
+         *            alone, and closed with it
+         * @param keyCodec
+         *            converts keys to bytes and back
+         * @param batchDelayMillis
+         *            how long to collect removals before sending them
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> broadcastInvalidations(InvalidationTransport transport,
+                ValueCodec<K1> keyCodec, long batchDelayMillis) {
+            if (batchDelayMillis < 0) {
+                throw new IllegalArgumentException("batchDelayMillis must not be negative");
+            }
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.invalidationTransport = Objects.requireNonNull(transport, "transport");
+            self.invalidationKeyCodec = Objects.requireNonNull(keyCodec, "keyCodec");
+            self.invalidationBatchDelayNanos = batchDelayMillis * 1000000;
+            return self;
+        }
+
+        /**
+         * Keeps the values most recently returned by get() in a small table
+         * private to each calling thread, and serves repeated requests for
+         * them from it without touching the shared map, until they would
+         * exceed their staleness bound or be due for a refresh. Removing a key,
+         * or clearing the cache, invalidates it in every thread. Requests served
+         * by the near cache are not seen by the maximum size policy, so hot keys
+         * gain less frequency there than they otherwise would.
+         *
+         * Each table holds entriesPerThread slots, rounded up to a power of two,
+         * for the life of its thread; this suits a fixed pool of request
+         * threads rather than many short-lived or virtual threads.
+         *
+         * @param entriesPerThread
+         *            the number of values each thread may hold
+         */
+        public Builder<K, V> nearCache(int entriesPerThread) {
+            if (entriesPerThread <= 0 || entriesPerThread > 1 << 16) {
+                throw new IllegalArgumentException("entriesPerThread must be between 1 and 65536");
+            }
+            this.nearCacheEntries = entriesPerThread;
+            return this;
+        }
+
+        /**
+         * When re-computing a stale value fails, returns the previous value for
+         * the key instead of failing, until the computation is retried. This
+         * trades the staleness bound for availability while a backend is down.
+         */
+        public Builder<K, V> serveStaleOnFailure() {
+            this.serveStaleOnFailure = true;
+            return this;
+        }
+
+        /**
+         * Fails any computation which has not completed within
+         * loadTimeoutMillis with a TimeoutException, and interrupts the thread
+         * running it. The failure is treated like any other, so it is cached
+         * and retried according to {@link #retryFailuresAfter(long, long)},
+         * and subject to {@link #serveStaleOnFailure()}. A computation which
+         * ignores the interrupt still occupies its thread (and its share of
+         * maximumConcurrentComputations); its value is discarded if it ever
+         * returns.
+         *
+         * @param loadTimeoutMillis
+         *            the longest a computation may take
+         */
+        public Builder<K, V> loadTimeout(long loadTimeoutMillis) {
+            if (loadTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("loadTimeoutMillis must be positive");
+            }
+            this.loadTimeoutNanos = loadTimeoutMillis * 1000000;
+            return this;
+        }
+
+        /**
+         * When {@link MaximumStalenessCache#get(Object, long, TimeUnit)} times
+         * out waiting for a value to be re-computed, returns the previous value
+         * for the key instead of throwing a TimeoutException.
+         */
+        public Builder<K, V> serveStaleOnTimeout() {
+            this.serveStaleOnTimeout = true;
+            return this;
+        }
+
+        /**
+         * Records hit, miss, load and eviction statistics, available from
+         * {@link MaximumStalenessCache#stats()}. Recording uses striped counters
+         * and is cheap enough to leave enabled.
+         */
+        public Builder<K, V> recordStats() {
+            this.recordStats = true;
+            return this;
+        }
+
+        /**
+         * Records statistics, as for {@link #recordStats()}, and exposes them as
+         * a {@link CacheStatsMXBean} registered with the platform MBean server
+         * under info.raack.cacheutils:type=MaximumStalenessCache,name=name
+         * until the cache is closed.
+         *
+         * @param name
+         *            the name identifying the cache, which must be unique
+         */
+        public Builder<K, V> registerMBean(String name) {
+            this.mbeanName = Objects.requireNonNull(name, "name");
+            this.recordStats = true;
+            return this;
+        }
+
+        /**
+         * Uses the given time source to measure the age of values, rather than
+         * System.nanoTime(). {@link Ticker#coarseTicker(long)} avoids reading
+         * the system clock on every request when staleness bounds are long.
+         *
+         * @param ticker
+         *            the time source
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Objects.requireNonNull(ticker, "ticker");
+            return this;
+        }
+
+        /**
+         * Computes the values for keys missed by a getAll() call with a single
+         * call to the given function, rather than separately for each key. The
+         * function may block. Keys it returns no value for are cached as
+         * absent, as if the single-key computation had returned null.
+         *
+         * @param bulkValueComputer
+         *            a functional interface which computes the values for a set
+         *            of keys
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> bulkValueComputer(
+                BlockingFunction<Set<K1>, Map<K1, V1>> bulkValueComputer) {
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.bulkValueComputer = Objects.requireNonNull(bulkValueComputer, "bulkValueComputer");
+            return self;
+        }
+
+        /**
+         * Stores computed values outside of the Java heap, in direct buffers,
+         * encoded with the given codec. Only an index of the entries is kept on
+         * the heap, and values are decoded each time they are requested. Each
+         * value occupies a block of the next power of two of its encoded size,
+         * of at least 64 bytes.
+         *
+         * @param valueCodec
+         *            converts values to and from bytes
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> storeValuesOffHeap(ValueCodec<V1> valueCodec) {
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.valueCodec = Objects.requireNonNull(valueCodec, "valueCodec");
+            return self;
+        }
+
+        /**
+         * Serves values saved by {@link MaximumStalenessCache#snapshot} from
+         * the given file, for as long as they remain fresh, rather than
+         * computing them again; for example, to avoid starting empty after a
+         * restart. The file is memory-mapped and only keys are read when the
+         * cache is built; each value is decoded the first time its key is
+         * requested. A missing file is ignored; if the file cannot be read,
+         * build() throws an UncheckedIOException. The age of each value is
+         * carried over using the wall clock, so clock adjustments between
+         * snapshot and restore shift it accordingly.
+         *
+         * @param file
+         *            the snapshot file
+         * @param keyCodec
+         *            converts keys from bytes
+         * @param valueCodec
+         *            converts values from bytes
+         */
+        @SuppressWarnings("unchecked")
+        public <K1 extends K, V1 extends V> Builder<K1, V1> restoreFrom(Path file, ValueCodec<K1> keyCodec,
+                ValueCodec<V1> valueCodec) {
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            self.snapshotFile = Objects.requireNonNull(file, "file");
+            self.snapshotKeyCodec = Objects.requireNonNull(keyCodec, "keyCodec");
+            self.snapshotValueCodec = Objects.requireNonNull(valueCodec, "valueCodec");
+            return self;
+        }
+
+        /**
+         * Runs each value computation on its own virtual thread, rather than in
+         * the shared pool which adds platform threads to compensate for blocked
+         * computations. Preferable when computations mostly wait on I/O.
+         * Requires Java 21 or later.
+         *
+         * @throws UnsupportedOperationException
+         *             if virtual threads are not available
+         */
+        public Builder<K, V> useVirtualThreads() {
+            if (!VirtualThreads.isSupported()) {
+                throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+            }
+            this.executor = VirtualThreads.newExecutor();
+            return this;
+        }
+
+        /**
+         * Runs value computations with the given executor, rather than the pool
+         * shared by all caches, so that slow computations for this cache cannot
+         * delay computations for others. The executor is not shut down when the
+         * cache is closed. Blocking computations run in a ForkJoinPool still
+         * use managed blocking, as with the shared pool.
+         *
+         * @param executor
+         *            runs value computations
+         */
+        public Builder<K, V> executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor, "executor");
+            return this;
+        }
+
+        /**
+         * Limits how many of this cache's value computations may run at once;
+         * further computations queue until one finishes. Bounds the load this
+         * cache can put on its backend and on an executor shared with other
+         * caches.
+         *
+         * @param maximumConcurrentComputations
+         *            the maximum number of computations in progress at once
+         */
+        public Builder<K, V> maximumConcurrentComputations(int maximumConcurrentComputations) {
+            if (maximumConcurrentComputations <= 0) {
+                throw new IllegalArgumentException("maximumConcurrentComputations must be positive");
+            }
+            this.maximumConcurrentComputations = maximumConcurrentComputations;
+            return this;
+        }
+
+        /**
+         * Creates a cache based on a value computation which may block.
+         *
+         * @param blockingValueComputer
+         *            a functional interface which computes cache key values which
+         *            may block
+         */
+        public <K1 extends K, V1 extends V> MaximumStalenessCache<K1, V1> build(
+                BlockingFunction<K1, V1> blockingValueComputer) {
+            return new MaximumStalenessCache<>(this, blockingValueComputer, null);
+        }
 
-        public Result(long startedAt, Future<V> data) {
-            this.startedAt = startedAt;
-            this.data = data;
+        /**
+         * Creates a cache based on a value computation which is guaranteed not to
+         * block.
+         *
+         * @param nonBlockingValueComputer
+         *            a functional interface which computes cache key values which
+         *            is guaranteed not to block
+         */
+        public <K1 extends K, V1 extends V> MaximumStalenessCache<K1, V1> build(
+                Function<K1, V1> nonBlockingValueComputer) {
+            return new MaximumStalenessCache<>(this, null, nonBlockingValueComputer);
         }
     }
 
     // create pool which will maximize computational resources available all times
     // it will scale up and down available threads as more tasks block
     // uses async-style tasks which are unrelated
-    private static ExecutorService resourcePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+    static final ExecutorService resourcePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
             ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
 }
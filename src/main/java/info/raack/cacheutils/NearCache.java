@@ -0,0 +1,122 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small table of recently returned values, private to each thread, which
+ * serves repeated requests for the same keys without touching the shared map.
+ * Each table is direct-mapped: a key may only occupy the slot its hash selects,
+ * and replaces whatever was there.
+ *
+ * A value is served until the time it was given, which the cache chooses so
+ * that it never exceeds the staleness bound of the result it came from. Keys
+ * are invalidated in every thread at once by advancing the generation of the
+ * stripe they hash to; a slot filled under an older generation is ignored.
+ * Since the cache reads a key's generation before reading the shared map, and
+ * advances it after removing the key from the map, a value removed from the
+ * map is never served afterwards by any thread.
+ */
+final class NearCache<K, V> {
+    static final Object MISS = new Object();
+
+    private static final int STRIPES = 64;
+
+    private final int mask;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private final ThreadLocal<Table> tables;
+
+    NearCache(int entriesPerThread) {
+        int size = 1;
+        while (size < entriesPerThread) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.tables = ThreadLocal.withInitial(() -> new Table(mask + 1));
+    }
+
+    /**
+     * Returns the value for the key if the calling thread holds a valid one, or
+     * MISS if not.
+     */
+    Object get(K key, long now) {
+        int hash = spread(key.hashCode());
+        Table table = tables.get();
+        int index = hash & mask;
+        if (!key.equals(table.keys[index]) || now - table.validUntil[index] >= 0
+                || table.generations[index] != generations.get(hash & (STRIPES - 1))) {
+            return MISS;
+        }
+        return table.values[index];
+    }
+
+    /**
+     * Returns the current generation of the key, which must be read before
+     * reading the value to be put in the calling thread's table.
+     */
+    long generation(K key) {
+        return generations.get(spread(key.hashCode()) & (STRIPES - 1));
+    }
+
+    void put(K key, V value, long validUntil, long generation) {
+        Table table = tables.get();
+        int index = spread(key.hashCode()) & mask;
+        table.keys[index] = key;
+        table.values[index] = value;
+        table.validUntil[index] = validUntil;
+        table.generations[index] = generation;
+    }
+
+    /**
+     * Invalidates the key in all threads; must be called after removing it
+     * from the shared map.
+     */
+    void invalidate(K key) {
+        generations.incrementAndGet(spread(key.hashCode()) & (STRIPES - 1));
+    }
+
+    void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+    }
+
+    // as in ConcurrentHashMap, so that keys differing only in their high bits
+    // do not all share one slot
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Table {
+        final Object[] keys;
+        final Object[] values;
+        final long[] validUntil;
+        final long[] generations;
+
+        Table(int size) {
+            keys = new Object[size];
+            values = new Object[size];
+            validUntil = new long[size];
+            generations = new long[size];
+        }
+    }
+}
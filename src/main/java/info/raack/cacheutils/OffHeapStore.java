@@ -0,0 +1,266 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Holds the encoded values of results in direct ByteBuffer slabs, outside of
+ * the Java heap, so that a large cache does not grow the old generation. Each
+ * result records only the address and length of its value.
+ *
+ * Space is allocated in power-of-two blocks of at least 64 bytes, carved from
+ * slabs of SLAB_SIZE bytes and recycled through a free list per block size.
+ * Values larger than a slab are given a buffer of their own. A result's block
+ * is freed once the result is retired, that is, removed from the cache; a
+ * thread still holding the result then reads FREED and must look the key up
+ * again.
+ *
+ * Allocation, copying values in and freeing take the write lock. Reads copy the
+ * value out under an optimistic stamp, so they only lock if a write
+ * interleaved, and decode it once the copy is known to be consistent.
+ */
+final class OffHeapStore<V> {
+
+    // values of Result.offHeapAddress other than block addresses
+    static final long NONE = 0;
+    static final long RETIRED = -1;
+    static final long FREED = -2;
+
+    // returned by read() in place of a value which has been freed
+    static final Object FREED_VALUE = new Object();
+
+    static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SHIFT = 6;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(SLAB_SIZE) - MIN_BLOCK_SHIFT + 1;
+
+    private final ValueCodec<V> codec;
+    private final StampedLock lock = new StampedLock();
+
+    // guarded by lock
+    private ByteBuffer[] slabs = new ByteBuffer[8];
+    private int slabCount;
+    private int current = -1;
+    private int currentOffset;
+    private final long[][] freeBlocks = new long[SIZE_CLASSES][];
+    private final int[] freeBlockCount = new int[SIZE_CLASSES];
+    private int[] freeSlabs = new int[8];
+    private int freeSlabCount;
+
+    OffHeapStore(ValueCodec<V> codec) {
+        this.codec = codec;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            freeBlocks[i] = new long[16];
+        }
+    }
+
+    /**
+     * Encodes and stores the value of a result which has not yet been
+     * completed. Returns false if the value is null, or the result was retired
+     * before its value was available; the value must then be kept in the
+     * result's future instead.
+     */
+    boolean store(Result<?, V> result, V value) {
+        if (value == null) {
+            return false;
+        }
+        byte[] bytes = codec.encode(value);
+        long stamp = lock.writeLock();
+        try {
+            if (result.offHeapAddress == RETIRED) {
+                result.offHeapAddress = NONE;
+                return false;
+            }
+            long address = allocate(bytes.length);
+            ByteBuffer slab = slabs[slabIndex(address)].duplicate();
+            slab.position(offset(address));
+            slab.put(bytes);
+            result.offHeapLength = bytes.length;
+            result.offHeapAddress = address;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the value of a completed result: the decoded stored value, the
+     * given value held in its future if nothing was stored, or FREED_VALUE.
+     */
+    Object read(Result<?, V> result, V onHeap) {
+        long stamp = lock.tryOptimisticRead();
+        Object bytes = copy(result);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                bytes = copy(result);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (bytes == null) {
+            return onHeap;
+        } else if (bytes == FREED_VALUE) {
+            return FREED_VALUE;
+        }
+        return codec.decode((byte[]) bytes);
+    }
+
+    /**
+     * Frees the stored value of a result which has been removed from the cache,
+     * or ensures that none is stored if it is not yet available.
+     */
+    void retire(Result<?, V> result) {
+        long stamp = lock.writeLock();
+        try {
+            long address = result.offHeapAddress;
+            if (address > 0) {
+                free(address, result.offHeapLength);
+                result.offHeapAddress = FREED;
+            } else if (address == NONE) {
+                result.offHeapAddress = RETIRED;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // may run without the lock, in which case the caller validates; the reads
+    // are bounds-checked, as they may be inconsistent
+    private Object copy(Result<?, V> result) {
+        long address = result.offHeapAddress;
+        if (address == FREED) {
+            return FREED_VALUE;
+        } else if (address <= 0) {
+            return null;
+        }
+        ByteBuffer[] slabs = this.slabs;
+        int index = slabIndex(address);
+        int offset = offset(address);
+        int length = result.offHeapLength;
+        if (index >= slabs.length || slabs[index] == null || length < 0
+                || offset + length > slabs[index].capacity()) {
+            return null;
+        }
+        ByteBuffer slab = slabs[index].duplicate();
+        slab.position(offset);
+        byte[] bytes = new byte[length];
+        slab.get(bytes);
+        return bytes;
+    }
+
+    private long allocate(int length) {
+        if (length > SLAB_SIZE) {
+            // too large to share a slab
+            return address(addSlab(length), 0);
+        }
+        int sizeClass = sizeClass(length);
+        if (freeBlockCount[sizeClass] > 0) {
+            return freeBlocks[sizeClass][--freeBlockCount[sizeClass]];
+        }
+        int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+        if (current < 0 || currentOffset + blockSize > SLAB_SIZE) {
+            if (current >= 0) {
+                // keep the rest of the full slab for smaller values
+                freeRemainder();
+            }
+            current = addSlab(SLAB_SIZE);
+            currentOffset = 0;
+        }
+        long address = address(current, currentOffset);
+        currentOffset += blockSize;
+        return address;
+    }
+
+    private void free(long address, int length) {
+        if (length > SLAB_SIZE) {
+            int index = slabIndex(address);
+            slabs[index] = null;
+            freeSlabs = push(freeSlabs, freeSlabCount++, index);
+        } else {
+            pushFreeBlock(sizeClass(length), address);
+        }
+    }
+
+    // splits the unused end of the current slab into free blocks
+    private void freeRemainder() {
+        for (int sizeClass = SIZE_CLASSES - 1; sizeClass >= 0; sizeClass--) {
+            int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+            while (currentOffset + blockSize <= SLAB_SIZE) {
+                pushFreeBlock(sizeClass, address(current, currentOffset));
+                currentOffset += blockSize;
+            }
+        }
+    }
+
+    private void pushFreeBlock(int sizeClass, long address) {
+        int count = freeBlockCount[sizeClass];
+        if (count == freeBlocks[sizeClass].length) {
+            freeBlocks[sizeClass] = Arrays.copyOf(freeBlocks[sizeClass], count << 1);
+        }
+        freeBlocks[sizeClass][count] = address;
+        freeBlockCount[sizeClass] = count + 1;
+    }
+
+    private int addSlab(int capacity) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(capacity);
+        int index;
+        if (freeSlabCount > 0) {
+            index = freeSlabs[--freeSlabCount];
+        } else {
+            index = slabCount++;
+            if (index == slabs.length) {
+                // copied, so that unlocked readers never see a partial array
+                slabs = Arrays.copyOf(slabs, index << 1);
+            }
+        }
+        slabs[index] = slab;
+        return index;
+    }
+
+    private static int[] push(int[] stack, int count, int value) {
+        if (count == stack.length) {
+            stack = Arrays.copyOf(stack, count << 1);
+        }
+        stack[count] = value;
+        return stack;
+    }
+
+    private static int sizeClass(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(shift - MIN_BLOCK_SHIFT, 0);
+    }
+
+    // slab indexes are offset by one so that every address is positive
+    private static long address(int slabIndex, int offset) {
+        return ((long) (slabIndex + 1) << 32) | offset;
+    }
+
+    private static int slabIndex(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A lossy, striped buffer of read events. Readers append without locking and
+ * simply drop the event if their stripe is full or contended; a single
+ * consumer holding the eviction lock drains all stripes. Losing some reads only
+ * makes the access order and frequency estimates slightly less precise.
+ */
+final class ReadBuffer<E> {
+
+    static final int SUCCESS = 0;
+    static final int FAILED = 1;
+    static final int FULL = 2;
+
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+    private static final int STRIPES = FrequencySketch
+            .ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+
+    private final Ring<E>[] rings;
+
+    ReadBuffer() {
+        @SuppressWarnings("unchecked")
+        Ring<E>[] rings = (Ring<E>[]) new Ring<?>[STRIPES];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new Ring<>();
+        }
+        this.rings = rings;
+    }
+
+    /**
+     * Records a read event, returning SUCCESS, FAILED (dropped due to
+     * contention) or FULL (dropped; the buffer should be drained).
+     */
+    int offer(E e) {
+        return rings[(int) Thread.currentThread().getId() & (STRIPES - 1)].offer(e);
+    }
+
+    /**
+     * Hands every buffered event to the consumer. Must only be called by one
+     * thread at a time.
+     */
+    void drainTo(Consumer<E> consumer) {
+        for (Ring<E> ring : rings) {
+            ring.drainTo(consumer);
+        }
+    }
+
+    private static final class Ring<E> {
+        private final AtomicLong readCounter = new AtomicLong();
+        private final AtomicLong writeCounter = new AtomicLong();
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+
+        int offer(E e) {
+            long head = readCounter.get();
+            long tail = writeCounter.get();
+            if (tail - head >= BUFFER_SIZE) {
+                return FULL;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & BUFFER_MASK), e);
+                return SUCCESS;
+            }
+            return FAILED;
+        }
+
+        void drainTo(Consumer<E> consumer) {
+            long head = readCounter.get();
+            long tail = writeCounter.get();
+            while (head != tail) {
+                int index = (int) (head & BUFFER_MASK);
+                E e = buffer.get(index);
+                if (e == null) {
+                    // slot claimed but not yet published; pick it up next time
+                    break;
+                }
+                buffer.lazySet(index, null);
+                consumer.accept(e);
+                head++;
+            }
+            readCounter.lazySet(head);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A single computation of the value for a key, as stored in the cache. The
+ * access order, variable order and eviction fields are only read and written
+ * by BoundedPolicy while it holds its eviction lock.
+ *
+ * Each result moves through an explicit set of states. It starts LOADING, and
+ * moves to LOADED or FAILED exactly once, just before its future is completed
+ * (a failure served with the previous value is still FAILED). Since a load may
+ * be finished by more than one party, such as a hedged second attempt or a
+ * load timeout, each must claim that move with finish() and give up if
+ * another got there first. While LOADED or
+ * FAILED, it may additionally be REFRESHING: one thread at a time may claim
+ * the right to compute its replacement in the background, and stale reloads
+ * of the result wait for that replacement instead of starting another
+ * computation. Whether a result is fresh or stale is a matter of its age, and
+ * is not part of its state.
+ */
+final class Result<K, V> {
+    static final int LOADING = 0;
+    static final int LOADED = 1;
+    static final int FAILED = 2;
+    // combined with LOADED or FAILED
+    static final int REFRESHING = 4;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Result> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(Result.class, "state");
+
+    final K key;
+    final long startedAt;
+    final CompletableFuture<V> data;
+    // how long the value stays fresh; the cache's bound until the value is
+    // computed, when a per-entry bound may replace it
+    volatile long maximumStalenessNanos;
+
+    // guarded by BoundedPolicy.evictionLock
+    Result<K, V> previousInAccessOrder;
+    Result<K, V> nextInAccessOrder;
+    Result<K, V> previousInVariableOrder;
+    Result<K, V> nextInVariableOrder;
+    long expiresAt;
+    int queueType;
+    boolean retired;
+    // whether the policy has replayed this result's insertion
+    boolean added;
+    // this result's share of the policy's size bound
+    int policyWeight;
+
+    // the result this one replaced, cleared by the computation of this result
+    // when it completes; volatile as requests which time out waiting for this
+    // result read it to serve the stale value
+    volatile Result<K, V> previous;
+    // the number of consecutive failed computations for the key, ending with
+    // this one
+    volatile int failures;
+
+    // guarded by REFRESHING
+    int refreshFailures;
+    long retryRefreshAt;
+    // the result being computed by a refresh in progress, if any
+    volatile Result<K, V> replacement;
+
+    private volatile int state;
+
+    // the threads computing this result, which are interrupted if the load
+    // times out; guarded by this
+    private List<Thread> computingThreads;
+    private boolean interrupted;
+
+    // guarded by OffHeapStore's lock; only used when values are stored off-heap
+    long offHeapAddress;
+    int offHeapLength;
+
+    Result(K key, long startedAt, long maximumStalenessNanos, CompletableFuture<V> data) {
+        this.key = key;
+        this.startedAt = startedAt;
+        this.maximumStalenessNanos = maximumStalenessNanos;
+        this.data = data;
+    }
+
+    boolean isFailed() {
+        return (state & FAILED) != 0;
+    }
+
+    /**
+     * Moves a LOADING result to LOADED or FAILED, returning false if it has
+     * already left LOADING; must be called before its future is completed.
+     */
+    boolean finish(int finalState) {
+        return STATE.compareAndSet(this, LOADING, finalState);
+    }
+
+    /**
+     * Moves a LOADING result, which nothing else can finish, to LOADED; must
+     * be called before its future is completed.
+     */
+    void loaded() {
+        state = LOADED;
+    }
+
+    /**
+     * Moves a LOADING (or, if its value could not be stored, LOADED) result to
+     * FAILED; must be called before its future is completed.
+     */
+    void failed() {
+        state = FAILED;
+    }
+
+    /**
+     * Registers the calling thread as computing this result, returning false
+     * if the computation has already timed out, when it should not start.
+     */
+    synchronized boolean startComputing() {
+        if (interrupted) {
+            return false;
+        }
+        if (computingThreads == null) {
+            computingThreads = new ArrayList<>(1);
+        }
+        computingThreads.add(Thread.currentThread());
+        return true;
+    }
+
+    /**
+     * Unregisters the calling thread, if registered, and clears any interrupt
+     * sent to it by interruptComputations(), so that it does not leak into the
+     * executor's next task.
+     */
+    synchronized void stopComputing() {
+        if (computingThreads != null) {
+            computingThreads.remove(Thread.currentThread());
+        }
+        if (interrupted) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Interrupts the threads computing this result, and keeps any which have
+     * not yet started from doing so.
+     */
+    synchronized void interruptComputations() {
+        interrupted = true;
+        if (computingThreads != null) {
+            for (Thread thread : computingThreads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Claims the right to refresh this result, returning false if it is still
+     * loading or a refresh is already in progress.
+     */
+    boolean startRefresh() {
+        int current = state;
+        return (current == LOADED || current == FAILED) && STATE.compareAndSet(this, current, current | REFRESHING);
+    }
+
+    /**
+     * Ends a refresh claimed with startRefresh(); only the claiming thread may
+     * call this, and no other transition is possible while REFRESHING.
+     */
+    void endRefresh() {
+        state &= ~REFRESHING;
+    }
+}
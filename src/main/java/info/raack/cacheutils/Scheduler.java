@@ -0,0 +1,57 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the timed tasks of all caches on a single daemon thread: expiry sweeps,
+ * invalidation batches, hedges, load timeouts and write-behind flushes. Tasks
+ * delay each other, so they must be short; one which may block, or completes
+ * futures whose callbacks might, hands the work to an executor instead. Coarse
+ * tickers have a thread of their own, as a late update skews every reading.
+ */
+final class Scheduler {
+
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "cacheutils-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // so that cancelled timeouts and hedges, which are most of them, do not
+        // pile up in the queue
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    private Scheduler() {
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(task, delay, unit);
+    }
+
+    static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(task, delay, delay, unit);
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The entries of a cache saved to a file, from which a new cache can serve
+ * still-fresh values after a restart rather than computing them again.
+ *
+ * The file starts with a header (magic number, version, the wall-clock time
+ * the snapshot was taken and the number of entries), followed by one record
+ * per entry: the key's length and bytes, the value's length (-1 for null) and
+ * bytes, the age of the value when the snapshot was taken and how long it
+ * stays fresh. Ages are
+ * carried across the restart using the wall clock, as ticker readings are not
+ * comparable between JVMs.
+ *
+ * On opening, the file is memory-mapped and only the keys of entries which
+ * may still be fresh are decoded, to index their records. Each value is
+ * decoded the first time its key is requested, and then dropped from the
+ * index. Files are read and written in mapped windows, as a single mapping is
+ * limited to 2GB. Windows holding no indexed record are dropped on opening,
+ * and the rest once every value has been taken, removed or gone stale, so
+ * that the file is unmapped once the garbage collector frees them rather than
+ * for as long as the cache lives.
+ */
+final class Snapshot<K, V> {
+
+    private static final int MAGIC = 0x43534e50;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final long WINDOW_SIZE = 64 << 20;
+    private static final int REMOVAL_STRIPES = 64;
+
+    private final ValueCodec<V> valueCodec;
+    // null once the index is empty, which it then stays
+    private volatile ByteBuffer[] windows;
+    // the window (high 32 bits) and offset within it (low 32 bits) of each
+    // record not yet taken
+    private final ConcurrentHashMap<K, Long> index = new ConcurrentHashMap<>();
+    // counts calls to remove() and clear(), striped by key, so that a value
+    // taken just before its key was removed can be discarded
+    private final AtomicLongArray removals = new AtomicLongArray(REMOVAL_STRIPES);
+    // the ticker reading corresponding to when the snapshot was taken
+    private final long takenAt;
+    // the ticker reading at which every saved value will be stale
+    private final long expiresAt;
+    private final Ticker ticker;
+
+    /**
+     * Returns the snapshot in the given file, or null if there is no such
+     * file.
+     */
+    static <K, V> Snapshot<K, V> open(Path file, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec, Ticker ticker)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Snapshot<>(channel, keyCodec, valueCodec, ticker);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private Snapshot(FileChannel channel, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec, Ticker ticker)
+            throws IOException {
+        this.valueCodec = valueCodec;
+        this.ticker = ticker;
+
+        Reader reader = new Reader(channel);
+        reader.ensure(0, HEADER_SIZE);
+        if (reader.window.getInt(0) != MAGIC || reader.window.getInt(4) != VERSION) {
+            throw new IOException("not a cache snapshot, or written by an incompatible version");
+        }
+        long elapsedNanos = Math.max(0, System.currentTimeMillis() - reader.window.getLong(8)) * 1000000;
+        long count = reader.window.getLong(16);
+        this.takenAt = ticker.read() - elapsedNanos;
+
+        long now = ticker.read();
+        long expiresAt = now;
+        long position = HEADER_SIZE;
+        for (long i = 0; i < count; i++) {
+            int keyLength = reader.ensure(position, 4).getInt(reader.offset(position));
+            int valueLength = reader.ensure(position, 8 + keyLength).getInt(reader.offset(position) + 4 + keyLength);
+            int recordLength = 24 + keyLength + Math.max(valueLength, 0);
+            ByteBuffer window = reader.ensure(position, recordLength);
+            int offset = reader.offset(position);
+            long startedAt = takenAt - window.getLong(offset + recordLength - 16);
+            long entryExpiresAt = startedAt + window.getLong(offset + recordLength - 8);
+            // entries which went stale before the restart are not worth indexing
+            if (entryExpiresAt - now > 0) {
+                index.put(keyCodec.decode(bytes(window, offset + 4, keyLength)),
+                        ((long) reader.windowIndex() << 32) | offset);
+                if (entryExpiresAt - expiresAt > 0) {
+                    expiresAt = entryExpiresAt;
+                }
+            }
+            position += recordLength;
+        }
+        this.expiresAt = expiresAt;
+
+        ByteBuffer[] windows = new ByteBuffer[reader.windows.size()];
+        for (long location : index.values()) {
+            int windowIndex = (int) (location >>> 32);
+            windows[windowIndex] = reader.windows.get(windowIndex);
+        }
+        this.windows = index.isEmpty() ? null : windows;
+    }
+
+    /**
+     * Removes the saved value for the key from the snapshot, returning it, or
+     * null if the snapshot holds no value for the key.
+     */
+    Entry<V> take(K key) {
+        if (index.isEmpty()) {
+            return null;
+        }
+        if (ticker.read() - expiresAt >= 0) {
+            // every saved value is now stale
+            index.clear();
+            release();
+            return null;
+        }
+        // read before removing the key, as the windows are only released once
+        // the index is empty
+        ByteBuffer[] windows = this.windows;
+        Long location = index.remove(key);
+        if (location == null) {
+            return null;
+        }
+        if (index.isEmpty()) {
+            release();
+        }
+        ByteBuffer window = windows[(int) (location >>> 32)];
+        int offset = (int) location.longValue();
+        int keyLength = window.getInt(offset);
+        int valueLength = window.getInt(offset + 4 + keyLength);
+        int valueOffset = offset + 8 + keyLength;
+        V value = (valueLength < 0) ? null : valueCodec.decode(bytes(window, valueOffset, valueLength));
+        long age = window.getLong(valueOffset + Math.max(valueLength, 0));
+        long maximumStalenessNanos = window.getLong(valueOffset + Math.max(valueLength, 0) + 8);
+        return new Entry<>(value, takenAt - age, maximumStalenessNanos);
+    }
+
+    /**
+     * Returns a count which changes whenever the key is removed or the
+     * snapshot cleared, for a caller which takes the key's value to check that
+     * it was not removed before the value could be used.
+     */
+    long removals(K key) {
+        return removals.get(stripe(key));
+    }
+
+    /**
+     * Drops the saved value for the key, if not yet taken.
+     */
+    void remove(K key) {
+        if (index.remove(key) != null && index.isEmpty()) {
+            release();
+        }
+        removals.incrementAndGet(stripe(key));
+    }
+
+    /**
+     * Drops all saved values not yet taken.
+     */
+    void clear() {
+        index.clear();
+        release();
+        for (int i = 0; i < REMOVAL_STRIPES; i++) {
+            removals.incrementAndGet(i);
+        }
+    }
+
+    // drops the mapped windows, which are unmapped once garbage collected;
+    // explicitly unmapping them could crash a thread still reading one
+    private void release() {
+        windows = null;
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (REMOVAL_STRIPES - 1);
+    }
+
+    private static byte[] bytes(ByteBuffer window, int offset, int length) {
+        ByteBuffer buffer = window.duplicate();
+        buffer.position(offset);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static final class Entry<V> {
+        final V value;
+        final long startedAt;
+        final long maximumStalenessNanos;
+
+        Entry(V value, long startedAt, long maximumStalenessNanos) {
+            this.value = value;
+            this.startedAt = startedAt;
+            this.maximumStalenessNanos = maximumStalenessNanos;
+        }
+    }
+
+    // maps the file in windows which each start at a record, so that no record
+    // spans two windows
+    private static final class Reader {
+        private final FileChannel channel;
+        private final long size;
+        final List<ByteBuffer> windows = new ArrayList<>();
+        ByteBuffer window;
+        private long windowStart;
+
+        Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // returns a window holding length bytes from position, which starts a
+        // record
+        ByteBuffer ensure(long position, int length) throws IOException {
+            if (length < 0 || position + length > size) {
+                throw new IOException("truncated cache snapshot");
+            }
+            if (window == null || position + length > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(MapMode.READ_ONLY, position, Math.min(size - position,
+                        Math.max(WINDOW_SIZE, length)));
+                windows.add(window);
+            }
+            return window;
+        }
+
+        int offset(long position) {
+            return (int) (position - windowStart);
+        }
+
+        int windowIndex() {
+            return windows.size() - 1;
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, which replaces the given file
+     * when committed, so that a snapshot is never left half-written.
+     */
+    static final class Writer<K, V> implements Closeable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ValueCodec<K> keyCodec;
+        private final ValueCodec<V> valueCodec;
+        private final MappedByteBuffer header;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position = HEADER_SIZE;
+        private long count;
+        private boolean committed;
+
+        Writer(Path file, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+            this.file = file;
+            this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+        }
+
+        /**
+         * @param value
+         *            the value, which may be null
+         * @param ageNanos
+         *            how long before now the value's computation was started
+         * @param maximumStalenessNanos
+         *            how long the value stays fresh
+         */
+        void write(K key, V value, long ageNanos, long maximumStalenessNanos) throws IOException {
+            byte[] keyBytes = keyCodec.encode(key);
+            byte[] valueBytes = (value == null) ? null : valueCodec.encode(value);
+            int length = 24 + keyBytes.length + ((valueBytes == null) ? 0 : valueBytes.length);
+
+            if (window == null || position + length > windowStart + window.capacity()) {
+                if (window != null) {
+                    window.force();
+                }
+                windowStart = position;
+                window = channel.map(MapMode.READ_WRITE, position, Math.max(WINDOW_SIZE, length));
+            }
+            window.position((int) (position - windowStart));
+            window.putInt(keyBytes.length).put(keyBytes);
+            if (valueBytes == null) {
+                window.putInt(-1);
+            } else {
+                window.putInt(valueBytes.length).put(valueBytes);
+            }
+            window.putLong(ageNanos).putLong(maximumStalenessNanos);
+            position += length;
+            count++;
+        }
+
+        /**
+         * Completes the snapshot and moves it into place.
+         *
+         * @param takenAtMillis
+         *            the wall clock time which the written ages are relative to
+         */
+        void commit(long takenAtMillis) throws IOException {
+            header.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, takenAtMillis).putLong(16, count);
+            header.force();
+            if (window != null) {
+                window.force();
+            }
+            // windows extend past the last record
+            channel.truncate(position);
+            channel.close();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (!committed) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates statistics for a cache. Each counter is a LongAdder, which
+ * stripes updates across cells under contention, so recording is cheap enough
+ * to leave enabled on the hot path.
+ */
+final class StatsCounter {
+
+    // one bucket per power of two nanoseconds
+    static final int HISTOGRAM_BUCKETS = 64;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder staleReloadCount = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder[] loadTimeHistogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+    StatsCounter() {
+        for (int i = 0; i < loadTimeHistogram.length; i++) {
+            loadTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+    void recordHit() {
+        hitCount.increment();
+    }
+
+    void recordMiss() {
+        missCount.increment();
+    }
+
+    void recordStaleReload() {
+        staleReloadCount.increment();
+    }
+
+    void recordRefresh() {
+        refreshCount.increment();
+    }
+
+    void recordHedge() {
+        hedgeCount.increment();
+    }
+
+    void recordLoadSuccess(long loadTimeNanos) {
+        loadSuccessCount.increment();
+        recordLoadTime(loadTimeNanos);
+    }
+
+    void recordLoadFailure(long loadTimeNanos) {
+        loadFailureCount.increment();
+        recordLoadTime(loadTimeNanos);
+    }
+
+    void recordEviction() {
+        evictionCount.increment();
+    }
+
+    private void recordLoadTime(long loadTimeNanos) {
+        long nanos = Math.max(0, loadTimeNanos);
+        totalLoadTime.add(nanos);
+        loadTimeHistogram[bucketOf(nanos)].increment();
+    }
+
+    static int bucketOf(long nanos) {
+        return (nanos == 0) ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Returns the current values of the counters. Counters are read one at a
+     * time, so a snapshot taken while the cache is in use is not atomic.
+     */
+    CacheStats snapshot() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = loadTimeHistogram[i].sum();
+        }
+        return new CacheStats(hitCount.sum(), missCount.sum(), staleReloadCount.sum(), refreshCount.sum(),
+                hedgeCount.sum(), loadSuccessCount.sum(), loadFailureCount.sum(), totalLoadTime.sum(), evictionCount.sum(), histogram);
+    }
+}
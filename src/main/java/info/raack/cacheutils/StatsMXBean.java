@@ -0,0 +1,131 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a cache's statistics through the platform MBean server. Each
+ * attribute is read from a fresh snapshot.
+ */
+final class StatsMXBean implements CacheStatsMXBean {
+
+    private final MaximumStalenessCache<?, ?> cache;
+    private final ObjectName objectName;
+
+    StatsMXBean(MaximumStalenessCache<?, ?> cache, String name) {
+        this.cache = cache;
+        try {
+            this.objectName = new ObjectName(
+                    "info.raack.cacheutils:type=MaximumStalenessCache,name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid MBean name " + name, e);
+        }
+    }
+
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register MBean " + objectName, e);
+        }
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister MBean " + objectName, e);
+        }
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getStaleReloadCount() {
+        return cache.stats().staleReloadCount();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return cache.stats().refreshCount();
+    }
+
+    @Override
+    public long getHedgeCount() {
+        return cache.stats().hedgeCount();
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return cache.stats().loadSuccessCount();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return cache.stats().loadFailureCount();
+    }
+
+    @Override
+    public double getAverageLoadTimeNanos() {
+        return cache.stats().averageLoadTimeNanos();
+    }
+
+    @Override
+    public long getLoadTime50thPercentileNanos() {
+        return cache.stats().loadTimePercentileNanos(50);
+    }
+
+    @Override
+    public long getLoadTime99thPercentileNanos() {
+        return cache.stats().loadTimePercentileNanos(99);
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+/**
+ * A source of nanosecond time, used by MaximumStalenessCache to measure the
+ * age of values. Only differences between readings are meaningful, as with
+ * System.nanoTime().
+ *
+ * A custom implementation can be supplied to make the passage of time
+ * deterministic, or to trade precision for a cheaper read.
+ */
+@FunctionalInterface
+public interface Ticker {
+
+    /**
+     * Returns the number of nanoseconds elapsed since an arbitrary origin.
+     */
+    public long read();
+
+    /**
+     * Returns a ticker which reads System.nanoTime().
+     */
+    public static Ticker systemTicker() {
+        return System::nanoTime;
+    }
+
+    /**
+     * Returns a ticker which reads a time updated by a background thread every
+     * resolutionMillis, rather than consulting the system clock on every read.
+     * Readings lag the system clock by up to resolutionMillis, so this is only
+     * suitable when that is small compared to the staleness bound.
+     *
+     * @param resolutionMillis
+     *            how often the time is updated
+     */
+    public static Ticker coarseTicker(long resolutionMillis) {
+        return new CoarseTicker(resolutionMillis);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package info.raack.cacheutils;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel which schedules results for expiration in O(1)
+ * time. Each level is an array of buckets spanning a power of two number of
+ * nanoseconds; a result is placed in the finest level whose total span covers
+ * the time remaining until it expires. As time advances, the buckets passed
+ * over are emptied: results which have expired are handed to the evictor and
+ * the rest cascade down into finer levels.
+ *
+ * The finest bucket spans about a millisecond, which bounds how late a result
+ * may be expired. This class is not thread-safe; BoundedPolicy only uses it
+ * while holding its eviction lock.
+ */
+final class TimerWheel<K, V> {
+
+    // number of buckets in each level
+    private static final int[] BUCKETS = { 64, 64, 64, 64, 32, 1 };
+    // duration of a single bucket in each level, plus the overflow span
+    private static final long[] SPANS = { 1L << 20, // 1.05 ms
+            1L << 26, // 67 ms
+            1L << 32, // 4.3 s
+            1L << 38, // 4.6 m
+            1L << 44, // 4.9 h
+            1L << 49, // 6.5 d
+            1L << 49 };
+    private static final int[] SHIFT = new int[SPANS.length];
+
+    static {
+        for (int i = 0; i < SPANS.length; i++) {
+            SHIFT[i] = Long.numberOfTrailingZeros(SPANS[i]);
+        }
+    }
+
+    private final Result<K, V>[][] wheel;
+    private long nanos;
+
+    TimerWheel(long currentTimeNanos) {
+        nanos = currentTimeNanos;
+        @SuppressWarnings("unchecked")
+        Result<K, V>[][] wheel = (Result<K, V>[][]) new Result<?, ?>[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            @SuppressWarnings("unchecked")
+            Result<K, V>[] buckets = (Result<K, V>[]) new Result<?, ?>[BUCKETS[i]];
+            for (int j = 0; j < buckets.length; j++) {
+                buckets[j] = sentinel();
+            }
+            wheel[i] = buckets;
+        }
+        this.wheel = wheel;
+    }
+
+    // the head of a circular list of results
+    private static <K, V> Result<K, V> sentinel() {
+        Result<K, V> sentinel = new Result<>(null, 0, 0, null);
+        sentinel.previousInVariableOrder = sentinel;
+        sentinel.nextInVariableOrder = sentinel;
+        return sentinel;
+    }
+
+    /**
+     * Schedules the result to be expired at its expiresAt time.
+     */
+    void schedule(Result<K, V> result) {
+        Result<K, V> sentinel = findBucket(result.expiresAt);
+        result.previousInVariableOrder = sentinel.previousInVariableOrder;
+        result.nextInVariableOrder = sentinel;
+        sentinel.previousInVariableOrder.nextInVariableOrder = result;
+        sentinel.previousInVariableOrder = result;
+    }
+
+    /**
+     * Removes the result from the wheel, if it is scheduled.
+     */
+    void deschedule(Result<K, V> result) {
+        if (result.nextInVariableOrder != null) {
+            result.nextInVariableOrder.previousInVariableOrder = result.previousInVariableOrder;
+            result.previousInVariableOrder.nextInVariableOrder = result.nextInVariableOrder;
+            result.nextInVariableOrder = null;
+            result.previousInVariableOrder = null;
+        }
+    }
+
+    /**
+     * Advances the wheel to the current time, handing every result which has
+     * expired to the evictor.
+     */
+    void advance(long currentTimeNanos, Consumer<Result<K, V>> evictor) {
+        long previousTimeNanos = nanos;
+        nanos = currentTimeNanos;
+
+        for (int i = 0; i < SHIFT.length - 1; i++) {
+            long previousTicks = (previousTimeNanos >>> SHIFT[i]);
+            long currentTicks = (currentTimeNanos >>> SHIFT[i]);
+            long delta = currentTicks - previousTicks;
+            if (delta <= 0L) {
+                // coarser levels cannot have ticked either
+                break;
+            }
+            expire(i, previousTicks, delta, evictor);
+        }
+    }
+
+    private void expire(int level, long previousTicks, long delta, Consumer<Result<K, V>> evictor) {
+        Result<K, V>[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        int steps = (int) Math.min(1 + delta, buckets.length);
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+
+        for (int i = start; i < end; i++) {
+            Result<K, V> sentinel = buckets[i & mask];
+            Result<K, V> result = sentinel.nextInVariableOrder;
+            sentinel.previousInVariableOrder = sentinel;
+            sentinel.nextInVariableOrder = sentinel;
+
+            while (result != sentinel) {
+                Result<K, V> next = result.nextInVariableOrder;
+                result.previousInVariableOrder = null;
+                result.nextInVariableOrder = null;
+
+                if (result.expiresAt - nanos <= 0) {
+                    evictor.accept(result);
+                } else {
+                    // not yet due; cascade into a finer level
+                    schedule(result);
+                }
+                result = next;
+            }
+        }
+    }
+
+    private Result<K, V> findBucket(long time) {
+        long duration = time - nanos;
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = (time >>> SHIFT[i]);
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[length][0];
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An InvalidationTransport which sends each message as a UDP datagram to a
+ * list of peers, and receives theirs on a daemon thread. Datagrams may be lost
+ * or reordered, which delays invalidation but does not break the staleness
+ * bound. On a loopback address, several caches in one process can be
+ * connected this way for tests.
+ */
+public final class UdpInvalidationTransport implements InvalidationTransport {
+    // the largest payload of a UDP datagram over IPv4
+    private static final int MAXIMUM_DATAGRAM_LENGTH = 65507;
+    // the longest the receiver waits before trying again after a failure
+    private static final long MAXIMUM_BACKOFF_MILLIS = 1000;
+
+    private final DatagramSocket socket;
+    private final Collection<InetSocketAddress> peers = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a transport receiving datagrams on the given address.
+     *
+     * @param bindAddress
+     *            the local address to receive on; port 0 chooses a free port,
+     *            which {@link #localAddress()} returns
+     */
+    public UdpInvalidationTransport(InetSocketAddress bindAddress) throws SocketException {
+        this.socket = new DatagramSocket(bindAddress);
+    }
+
+    /**
+     * Returns the address this transport receives on, for other instances to
+     * send to.
+     */
+    public InetSocketAddress localAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    /**
+     * Adds an instance to send messages to.
+     *
+     * @param peer
+     *            the address the other instance's transport receives on
+     */
+    public UdpInvalidationTransport addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+        return this;
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        Thread thread = new Thread(() -> receive(receiver), "cacheutils-invalidations-" + localAddress().getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void receive(Consumer<byte[]> receiver) {
+        byte[] buffer = new byte[MAXIMUM_DATAGRAM_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        long backoffMillis = 0;
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+                // anything else loses a datagram; wait before trying again, as
+                // a failure which persists would otherwise keep a core busy
+                backoffMillis = Math.min(Math.max(backoffMillis * 2, 1), MAXIMUM_BACKOFF_MILLIS);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            backoffMillis = 0;
+            receiver.accept(Arrays.copyOf(buffer, packet.getLength()));
+        }
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        for (InetSocketAddress peer : peers) {
+            socket.send(new DatagramPacket(message, message.length, peer));
+        }
+    }
+
+    @Override
+    public int maximumMessageLength() {
+        return MAXIMUM_DATAGRAM_LENGTH;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+    }
+}
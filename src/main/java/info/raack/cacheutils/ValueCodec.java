@@ -0,0 +1,40 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+/**
+ * Converts values to and from bytes, so that a MaximumStalenessCache can store
+ * them outside of the Java heap. See
+ * {@link MaximumStalenessCache.Builder#storeValuesOffHeap(ValueCodec)}.
+ */
+public interface ValueCodec<V> {
+
+    /**
+     * Returns the encoded form of a non-null value.
+     */
+    public byte[] encode(V value);
+
+    /**
+     * Returns a value equal to the one which was encoded as the given bytes.
+     * The array is not used by the cache afterwards.
+     */
+    public V decode(byte[] bytes);
+}
@@ -0,0 +1,176 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Collects the values put into a cache and writes them to a CacheWriter in the
+ * background, on the cache's executor, so that a slow backing store delays
+ * neither callers nor other caches.
+ *
+ * Values are collected for a short delay and written in batches of at most
+ * maximumBatchSize. Putting a key again before it is written replaces the
+ * value to be written, so only the latest value of each key is written. A key
+ * is only taken from the collected values if its value is unchanged, so a put
+ * racing a batch is written by the next one. After a failed write, writing
+ * backs off exponentially until one succeeds.
+ */
+final class WriteBehind<K, V> {
+    // stands in for null values, which the map cannot hold
+    private static final Object NULL = new Object();
+    private static final long MINIMUM_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAXIMUM_RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final CacheWriter<K, V> writer;
+    private final long writeDelayNanos;
+    private final int maximumBatchSize;
+    private final Executor executor;
+    private final Consumer<K> onWritten;
+    private final ConcurrentHashMap<K, Object> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // held while writing, so that the writer is never called concurrently
+    private final Object writeLock = new Object();
+    // how long to wait before writing again; zero unless the last write failed
+    private volatile long retryDelayNanos;
+    private volatile boolean closed;
+
+    /**
+     * @param executor
+     *            runs the writes, which may block
+     * @param onWritten
+     *            called with each key once its value has been written, or null
+     */
+    WriteBehind(CacheWriter<K, V> writer, long writeDelayNanos, int maximumBatchSize, Executor executor,
+            Consumer<K> onWritten) {
+        this.writer = writer;
+        this.writeDelayNanos = writeDelayNanos;
+        this.maximumBatchSize = maximumBatchSize;
+        this.executor = executor;
+        this.onWritten = onWritten;
+    }
+
+    void enqueue(K key, V value) {
+        pending.put(key, (value == null) ? NULL : value);
+        schedule(Math.max(writeDelayNanos, retryDelayNanos));
+    }
+
+    private void schedule(long delayNanos) {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            Scheduler.schedule(this::startFlush, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // run by the Scheduler, whose thread must not wait for the writer
+    private void startFlush() {
+        try {
+            executor.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // try again later; closing the cache writes anything still collected
+            scheduled.set(false);
+            backOff();
+        }
+    }
+
+    private void backOff() {
+        long delay = retryDelayNanos;
+        delay = (delay == 0) ? Math.max(writeDelayNanos, MINIMUM_RETRY_DELAY_NANOS)
+                : Math.min(delay * 2, MAXIMUM_RETRY_DELAY_NANOS);
+        retryDelayNanos = delay;
+        schedule(delay);
+    }
+
+    // writes everything collected so far, stopping at the first failure
+    private void flush() {
+        synchronized (writeLock) {
+            // anything collected from here on is written by the next flush
+            scheduled.set(false);
+            Map<K, Object> batch = new LinkedHashMap<>();
+            for (Map.Entry<K, Object> entry : pending.entrySet()) {
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    batch.put(entry.getKey(), entry.getValue());
+                    if (batch.size() == maximumBatchSize) {
+                        if (!write(batch)) {
+                            return;
+                        }
+                        batch = new LinkedHashMap<>();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+
+    // must hold writeLock
+    @SuppressWarnings("unchecked")
+    private boolean write(Map<K, Object> batch) {
+        Map<K, V> values = new LinkedHashMap<>();
+        for (Map.Entry<K, Object> entry : batch.entrySet()) {
+            values.put(entry.getKey(), (entry.getValue() == NULL) ? null : (V) entry.getValue());
+        }
+        try {
+            // so that a ForkJoinPool executor makes up for the blocked thread
+            ForkJoinPool.managedBlock(new MaximumStalenessCache.Blocker<Map<K, V>, Void>(batchValues -> {
+                writer.writeAll(batchValues);
+                return null;
+            }, Collections.unmodifiableMap(values)));
+        } catch (Throwable t) {
+            // including Errors, as the values would otherwise be lost
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // try again later, unless a newer value has been put since
+            for (Map.Entry<K, Object> entry : batch.entrySet()) {
+                pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            backOff();
+            return false;
+        }
+        retryDelayNanos = 0;
+        if (onWritten != null) {
+            for (K key : batch.keySet()) {
+                onWritten.accept(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes everything collected so far on the calling thread, after any
+     * write in progress, and stops writing in the background. Values whose
+     * write fails are lost.
+     */
+    void close() {
+        closed = true;
+        flush();
+    }
+}
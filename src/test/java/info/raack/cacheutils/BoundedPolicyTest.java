@@ -0,0 +1,148 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Test;
+
+public class BoundedPolicyTest {
+
+    private static final int MAXIMUM = 100;
+
+    private final ConcurrentMap<Integer, Result<Integer, Integer>> cache = new ConcurrentHashMap<>();
+    private final BoundedPolicy<Integer, Integer> policy = new BoundedPolicy<>(cache, MAXIMUM, false, false, 0,
+            Ticker.systemTicker(), null, null);
+
+    @Test
+    public void replacementBeforeInsertionIsReplayed() {
+        fill();
+
+        // a put replacing a result whose insertion is still in the write
+        // buffer records the replacement first
+        Result<Integer, Integer> inserted = newResult(-1);
+        Result<Integer, Integer> replacement = newResult(-1);
+        cache.put(-1, replacement);
+        policy.recordReplacement(inserted, replacement);
+        policy.recordAdd(inserted);
+        policy.afterWrite();
+
+        assertSame(replacement, cache.get(-1));
+        assertLinked();
+        assertBounded();
+    }
+
+    @Test
+    public void removalBeforeInsertionIsReplayed() {
+        fill();
+
+        Result<Integer, Integer> inserted = newResult(-1);
+        policy.recordRemoval(inserted);
+        policy.recordAdd(inserted);
+        policy.afterWrite();
+
+        assertLinked();
+        assertBounded();
+    }
+
+    @Test
+    public void replacementTakesOverPosition() {
+        fill();
+
+        Result<Integer, Integer> previous = cache.get(0);
+        Result<Integer, Integer> replacement = newResult(0);
+        cache.put(0, replacement);
+        policy.recordReplacement(previous, replacement);
+        policy.afterWrite();
+
+        assertSame(replacement, cache.get(0));
+        assertLinked();
+        assertBounded();
+    }
+
+    // fills the cache to its bound, reading every entry so that most reach
+    // the protected queue
+    private void fill() {
+        for (int i = 0; i < MAXIMUM; i++) {
+            add(i);
+        }
+        policy.afterWrite();
+        for (int round = 0; round < 2; round++) {
+            for (Result<Integer, Integer> result : cache.values()) {
+                policy.recordRead(result, 0);
+            }
+        }
+        assertEquals(MAXIMUM, cache.size());
+    }
+
+    // checks that every cached result is in exactly one well-formed queue
+    private void assertLinked() {
+        int[] heads = new int[4];
+        for (Result<Integer, Integer> result : cache.values()) {
+            assertNotEquals(0, result.queueType);
+            Result<Integer, Integer> previous = result.previousInAccessOrder;
+            Result<Integer, Integer> next = result.nextInAccessOrder;
+            if (previous == null) {
+                heads[result.queueType]++;
+            } else {
+                assertSame(result, previous.nextInAccessOrder);
+                assertEquals(result.queueType, previous.queueType);
+            }
+            if (next != null) {
+                assertSame(result, next.previousInAccessOrder);
+            }
+        }
+        for (int queueHeads : heads) {
+            assertTrue(queueHeads <= 1);
+        }
+    }
+
+    // inserts and reads enough new entries to cycle every queue, and checks
+    // that the policy still evicts down to its bound
+    private void assertBounded() {
+        for (int i = MAXIMUM; i < 10 * MAXIMUM; i++) {
+            add(i);
+            policy.afterWrite();
+            assertEquals(MAXIMUM, cache.size());
+            for (Result<Integer, Integer> result : cache.values()) {
+                policy.recordRead(result, 0);
+            }
+        }
+        assertLinked();
+    }
+
+    private void add(int key) {
+        Result<Integer, Integer> result = newResult(key);
+        cache.put(key, result);
+        policy.recordAdd(result);
+    }
+
+    private static Result<Integer, Integer> newResult(int key) {
+        return new Result<>(key, 0, Long.MAX_VALUE, new CompletableFuture<>());
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongTableTest {
+
+    // a segment's table before it first grows
+    private static final int INITIAL_MASK = 15;
+    private static final int SEGMENTS = FrequencySketch
+            .ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+
+    private final LongTable table = new LongTable();
+
+    @Test
+    public void deleteShiftsBackClusterWrappingPastEnd() {
+        // home slots 14, 15, 15, 15 and 0 occupy 14, 15, 0, 1 and 2
+        List<Long> keys = new ArrayList<>();
+        keys.addAll(keysWithHome(14, 1));
+        keys.addAll(keysWithHome(15, 3));
+        keys.addAll(keysWithHome(0, 1));
+
+        // removing each key in turn from a fresh table exercises a shift from
+        // every position in the cluster
+        for (long removed : keys) {
+            LongTable table = new LongTable();
+            for (long key : keys) {
+                install(table, key);
+            }
+            assertTrue(table.remove(removed));
+            assertEquals(keys.size() - 1, table.size());
+            for (long key : keys) {
+                if (key == removed) {
+                    assertNull(table.getFresh(key, 0));
+                } else {
+                    assertEquals(key, table.getFresh(key, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keysDisplacedByDeletedKeyRemainReachable() {
+        List<Long> sameHome = keysWithHome(3, 3);
+        List<Long> nextHome = keysWithHome(4, 2);
+        for (long key : sameHome) {
+            install(table, key);
+        }
+        for (long key : nextHome) {
+            install(table, key);
+        }
+
+        // each removal shifts the rest of the run back, past keys whose home
+        // is the slot after
+        for (long key : sameHome) {
+            assertTrue(table.remove(key));
+            assertFalse(table.remove(key));
+            assertNull(table.getFresh(key, 0));
+        }
+        for (long key : nextHome) {
+            assertEquals(key, table.getFresh(key, 0));
+        }
+
+        // a removed key can be installed again, and is then found
+        long again = sameHome.get(1);
+        install(table, again);
+        assertEquals(again, table.getFresh(again, 0));
+        assertEquals(nextHome.size() + 1, table.size());
+    }
+
+    @Test
+    public void removalsBeforeAndAfterResize() {
+        // enough keys in one segment to grow its table twice
+        List<Long> keys = keysInSegment(4 * (INITIAL_MASK + 1));
+        for (int i = 0; i < keys.size() / 2; i++) {
+            install(table, keys.get(i));
+        }
+        for (int i = 0; i < keys.size() / 2; i += 2) {
+            assertTrue(table.remove(keys.get(i)));
+        }
+        for (int i = keys.size() / 2; i < keys.size(); i++) {
+            install(table, keys.get(i));
+        }
+        for (int i = keys.size() / 2 + 1; i < keys.size(); i += 2) {
+            assertTrue(table.remove(keys.get(i)));
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.get(i);
+            boolean removed = (i < keys.size() / 2) ? (i % 2 == 0) : (i % 2 == 1);
+            if (removed) {
+                assertNull(table.getFresh(key, 0));
+            } else {
+                assertEquals(key, table.getFresh(key, 0));
+            }
+        }
+        assertEquals(keys.size() / 2, table.size());
+    }
+
+    @Test
+    public void matchesMapUnderRandomInstallsAndRemovals() {
+        // few keys, so that the tables stay crowded and probe sequences long
+        Random random = new Random(42);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, table.remove(key));
+            } else {
+                install(table, key);
+                expected.put(key, key);
+            }
+            if (random.nextInt(5000) == 0) {
+                table.clear();
+                expected.clear();
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (long key = 0; key < 200; key++) {
+            assertEquals(expected.get(key), table.getFresh(key, 0));
+        }
+    }
+
+    @Test
+    public void staleValueIsNotReturned() {
+        table.install(1, "old", 10, 5);
+        assertEquals("old", table.getFresh(1, 9));
+        assertNull(table.getFresh(1, 10));
+
+        // a fresh value is kept, a stale one replaced
+        assertEquals("old", table.install(1, "new", 12, 5));
+        assertEquals("new", table.install(1, "new", 20, 5));
+        assertEquals("new", table.getFresh(1, 19));
+    }
+
+    private static void install(LongTable table, long key) {
+        table.install(key, key, 1, 0);
+    }
+
+    // keys of the first segment, whose slot in a new table is home
+    private static List<Long> keysWithHome(int home, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < count; key++) {
+            int hash = LongTable.spread(key);
+            if (segmentOf(hash) == 0 && (hash & INITIAL_MASK) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static List<Long> keysInSegment(int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < count; key++) {
+            if (segmentOf(LongTable.spread(key)) == 0) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static int segmentOf(int hash) {
+        return (SEGMENTS == 1) ? 0 : hash >>> (32 - Integer.numberOfTrailingZeros(SEGMENTS));
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class OffHeapStoreTest {
+
+    private static final ValueCodec<byte[]> CODEC = new ValueCodec<byte[]>() {
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(byte[] bytes) {
+            return bytes;
+        }
+    };
+
+    private final OffHeapStore<byte[]> store = new OffHeapStore<>(CODEC);
+
+    @Test
+    public void storedValueIsRead() {
+        Result<Integer, byte[]> result = newResult(1);
+        assertTrue(store.store(result, filled(100, 1)));
+        assertArrayEquals(filled(100, 1), (byte[]) store.read(result, null));
+    }
+
+    @Test
+    public void nullIsKeptOnHeap() {
+        Result<Integer, byte[]> result = newResult(1);
+        assertFalse(store.store(result, null));
+        assertNull(store.read(result, null));
+    }
+
+    @Test
+    public void resultRetiredBeforeStoreKeepsValueOnHeap() {
+        Result<Integer, byte[]> result = newResult(1);
+        store.retire(result);
+        assertFalse(store.store(result, filled(100, 1)));
+        byte[] onHeap = filled(100, 1);
+        assertSame(onHeap, store.read(result, onHeap));
+    }
+
+    @Test
+    public void freedBlockIsReusedForSameSizeClass() {
+        Result<Integer, byte[]> first = newResult(1);
+        store.store(first, filled(100, 1));
+        long address = first.offHeapAddress;
+        store.retire(first);
+        assertSame(OffHeapStore.FREED_VALUE, store.read(first, null));
+
+        // 100 and 120 bytes both take a 128 byte block
+        Result<Integer, byte[]> second = newResult(2);
+        store.store(second, filled(120, 2));
+        assertEquals(address, second.offHeapAddress);
+        assertArrayEquals(filled(120, 2), (byte[]) store.read(second, null));
+        assertSame(OffHeapStore.FREED_VALUE, store.read(first, null));
+
+        // a different size class gets a block of its own
+        Result<Integer, byte[]> third = newResult(3);
+        store.store(third, filled(1000, 3));
+        assertNotEquals(address, third.offHeapAddress);
+        assertArrayEquals(filled(120, 2), (byte[]) store.read(second, null));
+    }
+
+    @Test
+    public void blocksFillSlabsAndSpillIntoNewOnes() {
+        // enough 64 KiB values to fill several slabs
+        Result<?, byte[]>[] results = newResults(3 * OffHeapStore.SLAB_SIZE / 65536 + 1);
+        for (int i = 0; i < results.length; i++) {
+            store.store(results[i], filled(65536, i));
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertArrayEquals(filled(65536, i), (byte[]) store.read(results[i], null));
+        }
+    }
+
+    @Test
+    public void largeValueSlabIsReleasedAndItsIndexReused() {
+        Result<Integer, byte[]> small = newResult(0);
+        store.store(small, filled(100, 0));
+
+        Result<Integer, byte[]> large = newResult(1);
+        store.store(large, filled(OffHeapStore.SLAB_SIZE + 1, 1));
+        long address = large.offHeapAddress;
+        assertNotEquals(small.offHeapAddress >>> 32, address >>> 32);
+        assertArrayEquals(filled(OffHeapStore.SLAB_SIZE + 1, 1), (byte[]) store.read(large, null));
+
+        store.retire(large);
+        assertSame(OffHeapStore.FREED_VALUE, store.read(large, null));
+
+        // the next large value takes the released slab's place
+        Result<Integer, byte[]> larger = newResult(2);
+        store.store(larger, filled(2 * OffHeapStore.SLAB_SIZE, 2));
+        assertEquals(address, larger.offHeapAddress);
+        assertArrayEquals(filled(2 * OffHeapStore.SLAB_SIZE, 2), (byte[]) store.read(larger, null));
+        assertSame(OffHeapStore.FREED_VALUE, store.read(large, null));
+        assertArrayEquals(filled(100, 0), (byte[]) store.read(small, null));
+    }
+
+    @Test
+    public void readRacingFreeSeesItsValueOrFreed() throws InterruptedException {
+        // each value is freed as the next is stored, which reuses its block,
+        // so a read of a freed result which did not notice the free would see
+        // the next value's bytes
+        AtomicReference<Result<Integer, byte[]>> latest = new AtomicReference<>();
+        Result<Integer, byte[]> first = newResult(0);
+        store.store(first, filled(256, 0));
+        latest.set(first);
+        AtomicReference<AssertionError> failure = new AtomicReference<>();
+        int stores = 200000;
+
+        Thread reader = new Thread(() -> {
+            Result<Integer, byte[]> result;
+            do {
+                result = latest.get();
+                Object value = store.read(result, null);
+                if (value != OffHeapStore.FREED_VALUE
+                        && !Arrays.equals(filled(256, result.key), (byte[]) value)) {
+                    failure.set(new AssertionError("read another value for " + result.key));
+                    return;
+                }
+            } while (result.key < stores);
+        });
+        reader.start();
+        for (int i = 1; i <= stores; i++) {
+            Result<Integer, byte[]> result = newResult(i);
+            store.store(result, filled(256, i));
+            store.retire(latest.getAndSet(result));
+        }
+        reader.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static Result<Integer, byte[]> newResult(int key) {
+        return new Result<>(key, 0, Long.MAX_VALUE, new CompletableFuture<>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Result<?, byte[]>[] newResults(int count) {
+        Result<?, byte[]>[] results = new Result[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = newResult(i);
+        }
+        return results;
+    }
+}
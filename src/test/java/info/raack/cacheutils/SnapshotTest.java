@@ -0,0 +1,218 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotTest {
+
+    private static final ValueCodec<String> CODEC = new ValueCodec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = nanos::get;
+
+    @Test
+    public void valuesRoundTrip() throws IOException {
+        Path file = write();
+        Snapshot<String, String> snapshot = Snapshot.open(file, CODEC, CODEC, ticker);
+
+        Snapshot.Entry<String> a = snapshot.take("a");
+        assertEquals("1", a.value);
+        assertEquals(MINUTE, a.maximumStalenessNanos);
+        // the age is carried over, give or take the time taken by the test
+        assertEquals(-TimeUnit.SECONDS.toNanos(10), a.startedAt, TimeUnit.SECONDS.toNanos(5));
+
+        Snapshot.Entry<String> b = snapshot.take("b");
+        assertNotNull(b);
+        assertNull(b.value);
+
+        // each value is only taken once
+        assertNull(snapshot.take("a"));
+        assertNull(snapshot.take("b"));
+    }
+
+    @Test
+    public void staleValuesAreNotRestored() throws IOException {
+        Snapshot<String, String> snapshot = Snapshot.open(write(), CODEC, CODEC, ticker);
+        assertNull(snapshot.take("stale"));
+        assertNotNull(snapshot.take("a"));
+    }
+
+    @Test
+    public void nothingIsRestoredOnceAllValuesAreStale() throws IOException {
+        Snapshot<String, String> snapshot = Snapshot.open(write(), CODEC, CODEC, ticker);
+        nanos.addAndGet(2 * MINUTE);
+        assertNull(snapshot.take("a"));
+        assertNull(snapshot.take("b"));
+    }
+
+    @Test
+    public void removedKeyIsNotRestored() throws IOException {
+        Snapshot<String, String> snapshot = Snapshot.open(write(), CODEC, CODEC, ticker);
+        long removals = snapshot.removals("a");
+        snapshot.remove("a");
+        assertNotEquals(removals, snapshot.removals("a"));
+        assertNull(snapshot.take("a"));
+        assertNotNull(snapshot.take("b"));
+    }
+
+    @Test
+    public void clearedKeysAreNotRestored() throws IOException {
+        Snapshot<String, String> snapshot = Snapshot.open(write(), CODEC, CODEC, ticker);
+        long removals = snapshot.removals("b");
+        snapshot.clear();
+        assertNotEquals(removals, snapshot.removals("b"));
+        assertNull(snapshot.take("a"));
+        assertNull(snapshot.take("b"));
+    }
+
+    @Test
+    public void missingFileHasNoSnapshot() throws IOException {
+        assertNull(Snapshot.open(folder.getRoot().toPath().resolve("missing"), CODEC, CODEC, ticker));
+    }
+
+    @Test
+    public void truncatedHeaderIsRejected() throws IOException {
+        Path file = write();
+        truncate(file, 10);
+        assertRejected(file);
+    }
+
+    @Test
+    public void truncatedRecordIsRejected() throws IOException {
+        Path file = write();
+        truncate(file, Files.size(file) - 3);
+        assertRejected(file);
+    }
+
+    @Test
+    public void corruptHeaderIsRejected() throws IOException {
+        Path file = write();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), 0);
+        }
+        assertRejected(file);
+    }
+
+    @Test
+    public void corruptRecordLengthIsRejected() throws IOException {
+        Path file = write();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // the first record's key length
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f, 0, 0, 0 }), 24);
+        }
+        assertRejected(file);
+    }
+
+    @Test
+    public void cacheRestoresSavedValuesButNotRemovedKeys() throws IOException, InterruptedException {
+        Path file = folder.getRoot().toPath().resolve("cache.snapshot");
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, String> loader = key -> key + loads.incrementAndGet();
+
+        MaximumStalenessCache<String, String> saved = MaximumStalenessCache.builder(60000).ticker(ticker)
+                .build(loader);
+        assertEquals("a1", saved.get("a"));
+        assertEquals("b2", saved.get("b"));
+        saved.snapshot(file, CODEC, CODEC);
+        saved.close();
+
+        MaximumStalenessCache<String, String> restored = MaximumStalenessCache.builder(60000).ticker(ticker)
+                .restoreFrom(file, CODEC, CODEC).build(loader);
+        try {
+            assertEquals("a1", restored.get("a"));
+            restored.remove("b");
+            assertEquals("b3", restored.get("b"));
+            assertEquals(3, loads.get());
+        } finally {
+            restored.close();
+        }
+    }
+
+    // a snapshot taken now of a fresh value, a null value and a stale value
+    private Path write() throws IOException {
+        Path file = folder.newFile().toPath();
+        try (Snapshot.Writer<String, String> writer = new Snapshot.Writer<>(file, CODEC, CODEC)) {
+            writer.write("a", "1", TimeUnit.SECONDS.toNanos(10), MINUTE);
+            writer.write("stale", "2", 2 * MINUTE, MINUTE);
+            writer.write("b", null, 0, MINUTE);
+            writer.commit(System.currentTimeMillis());
+        }
+        return file;
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private void assertRejected(Path file) {
+        try {
+            Snapshot.open(file, CODEC, CODEC, ticker);
+            fail("opened a damaged snapshot");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            MaximumStalenessCache.builder(60000).restoreFrom(file, CODEC, CODEC)
+                    .build((Function<String, String>) key -> key);
+            fail("restored from a damaged snapshot");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+    }
+}
@@ -19,14 +19,21 @@
 
 package info.raack.cacheutils;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.OptionalDouble;
+import java.util.Locale;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
+
+import org.HdrHistogram.Histogram;
 
 import info.raack.cacheutils.Cache.BlockingFunction;
 
@@ -34,20 +41,39 @@ import info.raack.cacheutils.Cache.BlockingFunction;
  * Test harness to show performance benefit of MaximumStalenessCache vs a
  * no-cache scenario for a blocking computation.
  *
- * Example results:
+ * Each worker records into its own preallocated histogram, so the harness
+ * neither allocates nor contends while measuring. Percentiles are reported
+ * rather than averages, as stale reloads show up in the tail. Pass a file name
+ * ending in .csv or .json to also write the results for comparison between
+ * runs.
+ *
+ * Example results (milliseconds):
  *
  * test of throughput and staleness for computation of each value (no caching)
- * (200 threads; 10000 calls per thread) average staleness in milliseconds: 0.0
- * average to return value in milliseconds: 4.6624279385
+ * (200 threads; 10000 calls per thread)
+ *
+ * <pre>
+ * metric         count      mean       p50       p90       p99     p99.9       max
+ * latency      2000000     4.823     5.039     9.047    12.791    22.079    58.751
+ * staleness    2000000     0.000     0.000     0.000     0.000     0.000     0.000
+ * </pre>
  *
  * test of throughput and staleness for MaximumStalenessCache (1000 max
- * staleness millis; 200 threads; 10000 calls per thread) average staleness in
- * milliseconds: 571.0360734485 average to return value in milliseconds:
- * 0.066887064
+ * staleness millis; 200 threads; 10000 calls per thread)
  *
+ * <pre>
+ * metric         count      mean       p50       p90       p99     p99.9       max
+ * latency      2000000     0.015     0.000     0.000     0.000     0.001   296.191
+ * staleness    2000000   435.383   430.591   861.695   952.319   962.047   972.287
+ * </pre>
  */
 public class Test {
 
+    // largest latency or staleness that can be recorded, in microseconds
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
     public static Long longBlockingComputation(String key) throws InterruptedException {
         try {
             Thread.sleep(Integer.parseInt(key));
@@ -62,8 +88,8 @@ public class Test {
     private static class Worker implements Runnable {
         private final CountDownLatch startSignal;
         private final CountDownLatch doneSignal;
-        private final List<Long> microsToComplete;
-        private final List<Long> microsStale;
+        private final Histogram microsToComplete;
+        private final Histogram microsStale;
         private final Cache<String, Long> cache;
         private volatile int totalRequests;
 
@@ -71,8 +97,8 @@ public class Test {
                 Cache<String, Long> cache) {
             this.startSignal = startSignal;
             this.doneSignal = doneSignal;
-            microsToComplete = new LinkedList<>();
-            microsStale = new LinkedList<>();
+            microsToComplete = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+            microsStale = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
             this.cache = cache;
             this.totalRequests = totalRequests;
         }
@@ -94,21 +120,112 @@ public class Test {
                 long start = System.nanoTime();
                 long result = cache.get(key);
                 long complete = System.nanoTime();
-                microsToComplete.add((complete - start) / 1000);
-                microsStale.add(Math.max(0, (start - result) / 1000));
+                record(microsToComplete, (complete - start) / 1000);
+                record(microsStale, Math.max(0, (start - result) / 1000));
             }
         }
 
-        public List<Long> getMicrosToComplete() {
+        private static void record(Histogram histogram, long micros) {
+            histogram.recordValue(Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+        }
+
+        public Histogram getMicrosToComplete() {
             return microsToComplete;
         }
 
-        public List<Long> getMicrosStale() {
+        public Histogram getMicrosStale() {
             return microsStale;
         }
     }
 
-    public static void testHarness(int threads, int requestsPerThread, Cache<String, Long> cache)
+    /**
+     * Latency and staleness distributions, in microseconds, for one scenario.
+     */
+    public static class Report {
+        private final String scenario;
+        private final Histogram microsToComplete;
+        private final Histogram microsStale;
+
+        Report(String scenario, Histogram microsToComplete, Histogram microsStale) {
+            this.scenario = scenario;
+            this.microsToComplete = microsToComplete;
+            this.microsStale = microsStale;
+        }
+
+        void print(PrintStream out) {
+            StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%-9s %10s %9s", "metric", "count",
+                    "mean"));
+            for (double percentile : PERCENTILES) {
+                header.append(String.format(Locale.ROOT, " %9s", "p" + format(percentile)));
+            }
+            header.append(String.format(Locale.ROOT, " %9s", "max"));
+            out.println(header);
+            out.println(line("latency", microsToComplete));
+            out.println(line("staleness", microsStale));
+        }
+
+        private static String line(String metric, Histogram histogram) {
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-9s %10d %9.3f", metric,
+                    histogram.getTotalCount(), histogram.getMean() / 1000));
+            for (double percentile : PERCENTILES) {
+                line.append(String.format(Locale.ROOT, " %9.3f",
+                        histogram.getValueAtPercentile(percentile) / 1000.0));
+            }
+            line.append(String.format(Locale.ROOT, " %9.3f", histogram.getMaxValue() / 1000.0));
+            return line.toString();
+        }
+
+        static String csvHeader() {
+            StringBuilder header = new StringBuilder("scenario,metric,count,mean_ms");
+            for (double percentile : PERCENTILES) {
+                header.append(",p").append(format(percentile)).append("_ms");
+            }
+            return header.append(",max_ms").toString();
+        }
+
+        List<String> csvRows() {
+            List<String> rows = new ArrayList<>();
+            rows.add(csvRow("latency", microsToComplete));
+            rows.add(csvRow("staleness", microsStale));
+            return rows;
+        }
+
+        private String csvRow(String metric, Histogram histogram) {
+            StringBuilder row = new StringBuilder();
+            row.append('"').append(scenario.replace("\"", "\"\"")).append("\",").append(metric).append(',')
+                    .append(histogram.getTotalCount()).append(',').append(millis(histogram.getMean()));
+            for (double percentile : PERCENTILES) {
+                row.append(',').append(millis(histogram.getValueAtPercentile(percentile)));
+            }
+            return row.append(',').append(millis(histogram.getMaxValue())).toString();
+        }
+
+        String json() {
+            return "{\"scenario\":\"" + scenario.replace("\\", "\\\\").replace("\"", "\\\"") + "\",\"latency\":"
+                    + json(microsToComplete) + ",\"staleness\":" + json(microsStale) + "}";
+        }
+
+        private static String json(Histogram histogram) {
+            StringBuilder json = new StringBuilder("{\"count\":").append(histogram.getTotalCount())
+                    .append(",\"mean_ms\":").append(millis(histogram.getMean()));
+            for (double percentile : PERCENTILES) {
+                json.append(",\"p").append(format(percentile)).append("_ms\":")
+                        .append(millis(histogram.getValueAtPercentile(percentile)));
+            }
+            return json.append(",\"max_ms\":").append(millis(histogram.getMaxValue())).append('}').toString();
+        }
+
+        private static String millis(double micros) {
+            return String.format(Locale.ROOT, "%.3f", micros / 1000);
+        }
+
+        private static String format(double percentile) {
+            return (percentile == Math.rint(percentile)) ? Long.toString((long) percentile)
+                    : Double.toString(percentile);
+        }
+    }
+
+    public static Report testHarness(String scenario, int threads, int requestsPerThread, Cache<String, Long> cache)
             throws InterruptedException {
         CountDownLatch startSignal = new CountDownLatch(1);
         CountDownLatch doneSignal = new CountDownLatch(threads);
@@ -122,36 +239,54 @@ public class Test {
         startSignal.countDown(); // let all threads proceed
         doneSignal.await(); // wait for all to finish
 
-        OptionalDouble staleAverage = workers.stream().map(Worker::getMicrosStale).map(List::stream)
-                .reduce(Stream.empty(), (a, b) -> Stream.concat(a, b)).mapToLong(l -> l).average();
-
-        System.out.println("average staleness in milliseconds: "
-                + staleAverage.orElseThrow(() -> new RuntimeException("No values")) / 1000);
+        Histogram microsToComplete = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        Histogram microsStale = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        for (Worker worker : workers) {
+            microsToComplete.add(worker.getMicrosToComplete());
+            microsStale.add(worker.getMicrosStale());
+        }
 
-        OptionalDouble completeTimeAverage = workers.stream().map(Worker::getMicrosToComplete).map(List::stream)
-                .reduce(Stream.empty(), (a, b) -> Stream.concat(a, b)).mapToLong(l -> l).average();
+        Report report = new Report(scenario, microsToComplete, microsStale);
+        report.print(System.out);
+        return report;
+    }
 
-        System.out.println("average to return value in milliseconds: "
-                + completeTimeAverage.orElseThrow(() -> new RuntimeException("No values")) / 1000);
+    private static void write(String fileName, List<Report> reports) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (fileName.endsWith(".json")) {
+            lines.add("[" + reports.stream().map(Report::json).collect(Collectors.joining(",\n")) + "]");
+        } else if (fileName.endsWith(".csv")) {
+            lines.add(Report.csvHeader());
+            for (Report report : reports) {
+                lines.addAll(report.csvRows());
+            }
+        } else {
+            throw new IllegalArgumentException("output file must end in .csv or .json: " + fileName);
+        }
+        Files.write(Paths.get(fileName), lines, StandardCharsets.UTF_8);
     }
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
         int threads = 200;
         int callsPerThread = 10000;
         int maximumStalenessInMillis = 1000;
 
         BlockingFunction<String, Long> blockingValueComputer = k -> longBlockingComputation(k);
+        List<Report> reports = new ArrayList<>();
 
         System.out.println("test of throughput and staleness for computation of each value (" + threads + " threads; "
                 + callsPerThread + " calls per thread)");
-        testHarness(threads, callsPerThread, new NoCache<>(blockingValueComputer));
+        reports.add(testHarness("NoCache", threads, callsPerThread, new NoCache<>(blockingValueComputer)));
 
         System.out.println("");
 
         System.out.println("test of throughput and staleness for MaximumStalenessCache (" + maximumStalenessInMillis
                 + " max staleness millis; " + threads + " threads; " + callsPerThread + " calls per thread)");
-        testHarness(threads, callsPerThread,
-                new MaximumStalenessCache<>(maximumStalenessInMillis, blockingValueComputer));
+        reports.add(testHarness("MaximumStalenessCache", threads, callsPerThread,
+                new MaximumStalenessCache<>(maximumStalenessInMillis, blockingValueComputer)));
 
+        if (args.length > 0) {
+            write(args[0], reports);
+        }
     }
 }
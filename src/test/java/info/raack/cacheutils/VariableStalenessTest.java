@@ -0,0 +1,71 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class VariableStalenessTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final Function<Integer, Integer> loader = key -> loads.incrementAndGet();
+
+    @Test
+    public void veryLargeBoundNeverGoesStale() throws InterruptedException {
+        MaximumStalenessCache<Integer, Integer> cache = MaximumStalenessCache.builder(1)
+                .ticker(nanos::get)
+                .variableStaleness((Integer key, Integer value) -> Long.MAX_VALUE)
+                .build(loader);
+        try {
+            assertEquals(Integer.valueOf(1), cache.get(0));
+            nanos.addAndGet(TimeUnit.DAYS.toNanos(365));
+            assertEquals(Integer.valueOf(1), cache.get(0));
+            assertEquals(1, loads.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void boundIsTakenFromExpiry() throws InterruptedException {
+        MaximumStalenessCache<Integer, Integer> cache = MaximumStalenessCache.builder(1)
+                .ticker(nanos::get)
+                .variableStaleness((Integer key, Integer value) -> 1000L * key)
+                .build(loader);
+        try {
+            cache.get(1);
+            cache.get(2);
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+            cache.get(1);
+            cache.get(2);
+            assertEquals(3, loads.get());
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * A load queued behind a cache's concurrency limit fails if the executor is
+ * shut down before it starts, rather than being run on whichever thread finds
+ * the executor shut down, past the limit.
+ */
+@JCStressTest
+@Outcome(id = "-1, 1", expect = Expect.ACCEPTABLE, desc = "the queued load was failed")
+@Outcome(id = "2, 2", expect = Expect.FORBIDDEN, desc = "the queued load ran outside the executor")
+@Outcome(expect = Expect.FORBIDDEN, desc = "other cases are unexpected")
+@State
+public class BulkheadShutdownTest {
+    private static final Integer OTHER_KEY = 2;
+
+    private final HeldExecutor executor = new HeldExecutor();
+
+    private final CountingCache cache = new CountingCache(
+            builder -> builder.executor(executor).maximumConcurrentComputations(1));
+
+    public BulkheadShutdownTest() {
+        // takes the only slot until the executor is shut down
+        cache.cache.getAsync(CountingCache.KEY);
+    }
+
+    @Actor
+    public void get(II_Result r) {
+        r.r1 = cache.get(OTHER_KEY);
+    }
+
+    @Actor
+    public void shutDown() {
+        executor.shutDown();
+    }
+
+    @Arbiter
+    public void after(II_Result r) {
+        r.r2 = cache.loads.get();
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * A request racing clear() gets either the cleared value or a new one, and
+ * once clear() has returned no request gets the cleared value.
+ */
+@JCStressTest
+@Outcome(id = { "1, 2", "2, 2" }, expect = Expect.ACCEPTABLE, desc = "the request ran before or after the clear")
+@Outcome(expect = Expect.FORBIDDEN, desc = "the cleared value survived the clear, or a load was repeated")
+@State
+public class ClearTest {
+    private final CountingCache cache = new CountingCache();
+
+    public ClearTest() {
+        cache.get();
+    }
+
+    @Actor
+    public void get(II_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void clear() {
+        cache.cache.clear();
+    }
+
+    @Arbiter
+    public void after(II_Result r) {
+        r.r2 = cache.get();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info.raack.cacheutils.Cache.BlockingFunction;
+import info.raack.cacheutils.MaximumStalenessCache;
+
+/**
+ * A cache under test, with a manually advanced clock and a computation which
+ * returns the number of times it has been run, so that every value identifies
+ * the load which produced it.
+ */
+class CountingCache {
+    static final long MAXIMUM_STALENESS_MILLIS = 1000;
+    static final long REFRESH_AFTER_MILLIS = 500;
+
+    static final Integer KEY = 1;
+
+    final AtomicLong now = new AtomicLong();
+    final AtomicInteger loads = new AtomicInteger();
+    final MaximumStalenessCache<Integer, Integer> cache;
+
+    CountingCache() {
+        this(builder -> builder);
+    }
+
+    CountingCache(Options options) {
+        MaximumStalenessCache.Builder<? super Integer, ? super Integer> builder = options
+                .apply(MaximumStalenessCache.builder(MAXIMUM_STALENESS_MILLIS).ticker(now::get));
+        BlockingFunction<Integer, Integer> computation = key -> compute(loads.incrementAndGet());
+        cache = builder.build(computation);
+    }
+
+    // configures a cache beyond its staleness bound and clock
+    interface Options {
+        MaximumStalenessCache.Builder<? super Integer, ? super Integer> apply(
+                MaximumStalenessCache.Builder<Object, Object> builder);
+    }
+
+    /**
+     * Refreshes values after REFRESH_AFTER_MILLIS, and runs all computations
+     * with the given executor.
+     */
+    static Options refreshingOn(Executor refreshExecutor) {
+        return builder -> builder.refreshAfter(REFRESH_AFTER_MILLIS).executor(refreshExecutor);
+    }
+
+    // run by the cache for each load; may be overridden to fail some loads
+    Integer compute(int load) throws InterruptedException {
+        return load;
+    }
+
+    void advanceMillis(long millis) {
+        now.addAndGet(millis * 1000000);
+    }
+
+    int get() {
+        return get(KEY);
+    }
+
+    // returns 0 rather than null, which a correct cache never returns here,
+    // and -1 if the load failed
+    int get(Integer key) {
+        try {
+            Integer value = cache.get(key);
+            return (value == null) ? 0 : value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
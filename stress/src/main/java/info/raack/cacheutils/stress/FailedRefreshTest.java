@@ -0,0 +1,84 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * A background refresh which fails with an Error releases the requests waiting
+ * for it, and leaves the key free to be loaded again, rather than leaving
+ * them, and every later request, waiting forever.
+ */
+@JCStressTest
+@Outcome(id = "-1, -1, 3", expect = Expect.ACCEPTABLE, desc = "both requests waited for the failed refresh")
+@Outcome(id = { "-1, 3, 3", "3, -1, 3" }, expect = Expect.ACCEPTABLE,
+        desc = "one request waited for the failed refresh, the other loaded afterwards")
+@Outcome(id = "3, 3, 3", expect = Expect.ACCEPTABLE, desc = "both requests shared a load after the failed refresh")
+@Outcome(expect = Expect.FORBIDDEN, desc = "a stale value was returned, or the key was loaded more than once")
+@State
+public class FailedRefreshTest {
+    private final HeldExecutor executor = new HeldExecutor();
+
+    private final CountingCache cache = new CountingCache(CountingCache.refreshingOn(executor)) {
+        @Override
+        Integer compute(int load) {
+            if (load == 2) {
+                throw new AssertionError("refresh failed");
+            }
+            return load;
+        }
+    };
+
+    public FailedRefreshTest() {
+        cache.cache.getAsync(CountingCache.KEY);
+        executor.runHeld();
+        // a hit due for a refresh starts one in the background, which is held
+        cache.advanceMillis(CountingCache.REFRESH_AFTER_MILLIS);
+        cache.get();
+        cache.advanceMillis(CountingCache.REFRESH_AFTER_MILLIS);
+    }
+
+    @Actor
+    public void first(III_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void second(III_Result r) {
+        r.r2 = cache.get();
+    }
+
+    @Actor
+    public void failRefresh() {
+        executor.release();
+    }
+
+    @Arbiter
+    public void after(III_Result r) {
+        r.r3 = cache.get();
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Holds the computations it is given until released, and from then on runs
+ * them on the calling thread, so that a test can keep a computation in
+ * progress while its actors race it without any later computation hanging.
+ * Once shut down, it rejects computations instead.
+ */
+class HeldExecutor implements Executor {
+    private final ConcurrentLinkedQueue<Runnable> held = new ConcurrentLinkedQueue<>();
+    private volatile boolean released;
+    private volatile boolean shutDown;
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutDown) {
+            throw new RejectedExecutionException("shut down");
+        }
+        if (released) {
+            command.run();
+            return;
+        }
+        held.add(command);
+        if (released) {
+            // released while adding; the releasing thread may have missed it
+            runHeld();
+        }
+        if (shutDown && held.remove(command)) {
+            // shut down while adding, and not yet run
+            throw new RejectedExecutionException("shut down");
+        }
+    }
+
+    void release() {
+        released = true;
+        runHeld();
+    }
+
+    // rejects later computations, then runs those held so far
+    void shutDown() {
+        shutDown = true;
+        runHeld();
+    }
+
+    // runs the computations held so far, without releasing later ones
+    void runHeld() {
+        Runnable command;
+        while ((command = held.poll()) != null) {
+            command.run();
+        }
+    }
+}
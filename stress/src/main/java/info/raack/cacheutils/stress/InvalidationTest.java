@@ -0,0 +1,94 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import java.nio.ByteBuffer;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import info.raack.cacheutils.InMemoryInvalidationTransport;
+import info.raack.cacheutils.ValueCodec;
+
+/**
+ * A key removed from one instance of a cache is removed from another instance
+ * connected to it, even while that instance is serving the key, so that the
+ * other instance then loads the key again.
+ */
+@JCStressTest
+@Outcome(id = { "1, 2", "2, 2" }, expect = Expect.ACCEPTABLE,
+        desc = "the request ran before or after the invalidation arrived")
+@Outcome(id = { "1, 1", "2, 1" }, expect = Expect.FORBIDDEN, desc = "the invalidation was lost")
+@Outcome(expect = Expect.FORBIDDEN, desc = "other cases are unexpected")
+@State
+public class InvalidationTest {
+    private static final long DELIVERY_TIMEOUT_MILLIS = 1000;
+
+    private static final ValueCodec<Integer> CODEC = new ValueCodec<Integer>() {
+        @Override
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+    };
+
+    private final InMemoryInvalidationTransport transport = new InMemoryInvalidationTransport();
+    private final CountingCache removing = new CountingCache(
+            builder -> builder.broadcastInvalidations(transport, CODEC, 0));
+    private final CountingCache serving = new CountingCache(
+            builder -> builder.broadcastInvalidations(new InMemoryInvalidationTransport(transport), CODEC, 0));
+
+    public InvalidationTest() {
+        serving.get();
+    }
+
+    @Actor
+    public void remove() {
+        removing.cache.remove(CountingCache.KEY);
+    }
+
+    @Actor
+    public void get(II_Result r) {
+        r.r1 = serving.get();
+    }
+
+    @Arbiter
+    public void after(II_Result r) {
+        // invalidations are delivered in the background; until then the key
+        // stays cached, and is not loaded again
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_MILLIS * 1000000;
+        while (serving.cache.estimatedSize() > 0 && serving.loads.get() < 2 && System.nanoTime() - deadline < 0) {
+            Thread.yield();
+        }
+        r.r2 = serving.get();
+        removing.cache.close();
+        serving.cache.close();
+    }
+}
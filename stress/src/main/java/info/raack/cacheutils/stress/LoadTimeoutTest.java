@@ -0,0 +1,90 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.IIII_Result;
+
+/**
+ * A load which hangs is failed for every request waiting for it once the load
+ * timeout passes, and its computation is interrupted, or never started if it
+ * was still queued. The failure stays cached, so a later request does not
+ * start another load against the hung backend.
+ */
+@JCStressTest
+@Outcome(id = "-1, -1, 1, 0", expect = Expect.ACCEPTABLE, desc = "the load timed out and was interrupted")
+@Outcome(id = "-1, -1, 0, 0", expect = Expect.ACCEPTABLE, desc = "the load timed out before it started")
+@Outcome(id = "-1, -1, 1, 1", expect = Expect.FORBIDDEN, desc = "the hung computation was not interrupted")
+@Outcome(expect = Expect.FORBIDDEN, desc = "a request got a value, or the key was loaded again")
+@State
+public class LoadTimeoutTest {
+    private static final long LOAD_TIMEOUT_MILLIS = 1;
+
+    private static final long INTERRUPT_TIMEOUT_MILLIS = 1000;
+
+    // computations started and not yet interrupted
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final CountingCache cache = new CountingCache(builder -> builder.loadTimeout(LOAD_TIMEOUT_MILLIS)) {
+        @Override
+        Integer compute(int load) throws InterruptedException {
+            running.incrementAndGet();
+            try {
+                // hangs until interrupted
+                new CountDownLatch(1).await();
+            } finally {
+                running.decrementAndGet();
+            }
+            return load;
+        }
+    };
+
+    @Actor
+    public void first(IIII_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void second(IIII_Result r) {
+        r.r2 = cache.get();
+    }
+
+    @Arbiter
+    public void after(IIII_Result r) {
+        // fails at once if the failure is cached, and loads again if not
+        cache.get();
+        r.r3 = cache.loads.get();
+        // the interrupt is delivered in the background
+        long deadline = System.nanoTime() + INTERRUPT_TIMEOUT_MILLIS * 1000000;
+        while (running.get() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.yield();
+        }
+        r.r4 = running.get();
+    }
+}
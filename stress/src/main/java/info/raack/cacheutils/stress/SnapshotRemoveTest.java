@@ -0,0 +1,98 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import info.raack.cacheutils.ValueCodec;
+
+/**
+ * A value restored from a snapshot is not served once its key has been
+ * removed, even if the request restoring it races the removal.
+ */
+@JCStressTest
+@Outcome(id = "1, 2", expect = Expect.ACCEPTABLE, desc = "the request restored the value before the removal")
+@Outcome(id = "2, 2", expect = Expect.ACCEPTABLE, desc = "the request loaded the value after the removal")
+@Outcome(id = "2, 3", expect = Expect.ACCEPTABLE, desc = "the removal also removed the value the request loaded")
+@Outcome(expect = Expect.FORBIDDEN, desc = "the restored value survived the removal")
+@State
+public class SnapshotRemoveTest {
+    private static final ValueCodec<Integer> CODEC = new ValueCodec<Integer>() {
+        @Override
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+    };
+
+    private final CountingCache cache;
+
+    public SnapshotRemoveTest() {
+        try {
+            Path file = Files.createTempFile("cacheutils-stress", ".snapshot");
+            try {
+                CountingCache saved = new CountingCache();
+                saved.get();
+                saved.cache.snapshot(file, CODEC, CODEC);
+                saved.cache.close();
+                cache = new CountingCache(builder -> builder.restoreFrom(file, CODEC, CODEC));
+            } finally {
+                // the restored cache keeps its mapping of the file
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // so that the restored value is distinguishable from any loaded here
+        cache.loads.set(1);
+    }
+
+    @Actor
+    public void get(II_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void remove() {
+        cache.cache.remove(CountingCache.KEY);
+    }
+
+    @Arbiter
+    public void after(II_Result r) {
+        r.r2 = cache.get();
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * Two requests for a key whose value has gone stale share a single reload, and
+ * neither is given the stale value.
+ */
+@JCStressTest
+@Outcome(id = "2, 2, 2", expect = Expect.ACCEPTABLE, desc = "both requests were given the single reload")
+@Outcome(expect = Expect.FORBIDDEN, desc = "the key was reloaded more than once, or a request saw a stale value")
+@State
+public class StaleKeyLoadTest {
+    private final CountingCache cache = new CountingCache();
+
+    public StaleKeyLoadTest() {
+        cache.get();
+        cache.advanceMillis(CountingCache.MAXIMUM_STALENESS_MILLIS);
+    }
+
+    @Actor
+    public void first(III_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void second(III_Result r) {
+        r.r2 = cache.get();
+    }
+
+    @Arbiter
+    public void loads(III_Result r) {
+        r.r3 = cache.loads.get();
+    }
+}
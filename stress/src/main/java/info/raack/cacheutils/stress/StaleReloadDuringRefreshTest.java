@@ -0,0 +1,86 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * Requests for a key which goes stale while a background refresh of it is in
+ * progress wait for the refresh, rather than starting another load.
+ */
+@JCStressTest
+@Outcome(id = "2, 2, 2", expect = Expect.ACCEPTABLE, desc = "both requests were given the refreshed value")
+@Outcome(expect = Expect.FORBIDDEN, desc = "the key was loaded again during the refresh, or a request saw a stale value")
+@State
+public class StaleReloadDuringRefreshTest {
+    // holds computations until an actor runs them, so that the refresh is
+    // still in progress when the key goes stale
+    private final ConcurrentLinkedQueue<Runnable> computations = new ConcurrentLinkedQueue<>();
+    private final Executor executor = computations::add;
+
+    private final CountingCache cache = new CountingCache(CountingCache.refreshingOn(executor));
+
+    public StaleReloadDuringRefreshTest() {
+        cache.cache.getAsync(CountingCache.KEY);
+        runComputations();
+        // a hit due for a refresh starts one in the background
+        cache.advanceMillis(CountingCache.REFRESH_AFTER_MILLIS);
+        cache.get();
+        // stale, although the refreshed value will not be
+        cache.advanceMillis(CountingCache.REFRESH_AFTER_MILLIS);
+    }
+
+    @Actor
+    public void first(III_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void second(III_Result r) {
+        r.r2 = cache.get();
+    }
+
+    @Actor
+    public void completeRefresh() {
+        runComputations();
+    }
+
+    @Arbiter
+    public void loads(III_Result r) {
+        r.r3 = cache.loads.get();
+    }
+
+    private void runComputations() {
+        Runnable computation;
+        while ((computation = computations.poll()) != null) {
+            computation.run();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * This file is part of CacheUtils.
+ *
+ * (C) Copyright 2015 Taylor Raack.
+ *
+ * CacheUtils is free software: you can redistribute it and/or modify
+ * it under the terms of the Affero GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CacheUtils is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Affero GNU General Public License for more details.
+ *
+ * You should have received a copy of the Affero GNU General Public License
+ * along with CacheUtils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package info.raack.cacheutils.stress;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * A stale reload racing an explicit remove of the key never returns the stale
+ * value or no value, and the remove is never lost: a request after both have
+ * finished sees either the reload, if it followed the remove, or a new load.
+ */
+@JCStressTest
+@Outcome(id = "2, 2", expect = Expect.ACCEPTABLE, desc = "the remove came first; the reload was kept")
+@Outcome(id = "2, 3", expect = Expect.ACCEPTABLE, desc = "the reload came first, and was removed")
+@Outcome(expect = Expect.FORBIDDEN, desc = "a stale or missing value was returned, or the remove was lost")
+@State
+public class StaleReloadRemoveTest {
+    private final CountingCache cache = new CountingCache();
+
+    public StaleReloadRemoveTest() {
+        cache.get();
+        cache.advanceMillis(CountingCache.MAXIMUM_STALENESS_MILLIS);
+    }
+
+    @Actor
+    public void reload(II_Result r) {
+        r.r1 = cache.get();
+    }
+
+    @Actor
+    public void remove() {
+        cache.cache.remove(CountingCache.KEY);
+    }
+
+    @Arbiter
+    public void after(II_Result r) {
+        r.r2 = cache.get();
+    }
+}